@@ -0,0 +1,97 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * Name lookups in large directories, linear and hashed
+ *
+ * Makes a RAM disk file system with 1 KB blocks, once with linear and once
+ * with hashed directories (FEATURE_DIR_HASH), and fills one directory with
+ * N empty files. It then looks up random names in it and creates new ones,
+ * each cold: the file system is mounted again first, so neither the dentry
+ * cache nor the name index knows anything about the directory. It prints
+ * the block reads asked of the disk layer (buffer cache hits and misses)
+ * and the time of each operation, the mount left out.
+ *
+ * The entry format is version 2 by default, the one the hashed index was
+ * measured with; packed entries (version 3) make a linear directory take
+ * fewer blocks.
+ *
+ *   javac -d out src/*.java bench/TFSBenchDirHash.java
+ *   java -cp out TFSBenchDirHash [dir_version [N ...]]
+ */
+
+public class TFSBenchDirHash
+{
+	static final int BLOCK_SIZE = 1024;
+	static final long DISK_SIZE = 128L << 20;
+	static final int OPS = 50;  // cold lookups and cold creates for each N
+
+	public static void main(String argv[])
+	{
+		int dir_version = argv.length > 0 ? Integer.parseInt(argv[0]) : 2;
+		int[] counts = { 10, 1000, 10000, 100000 };
+		if (argv.length > 1) {
+			counts = new int[argv.length - 1];
+			for (int i = 1; i < argv.length; i++)
+				counts[i - 1] = Integer.parseInt(argv[i]);
+		}
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // the file system reports every call
+		new TFSFileSystem();
+		Random random = new Random(3);
+
+		for (int features : new int[] { 0, TFSFileSystem.FEATURE_DIR_HASH })
+			for (int n : counts) {
+				if (TFSFileSystem.tfs_mkfs(TFSDiskInputOutput.DIO_MEMORY, BLOCK_SIZE, DISK_SIZE, TFSFileSystem.ALLOC_BITMAP,
+						features, dir_version) < 0 || TFSFileSystem.tfs_mount() < 0) {
+					out.println("mkfs failed");
+					return;
+				}
+				TFSFileSystem.tfs_close(TFSFileSystem.tfs_create_dir("/d".getBytes(), 2));
+				for (int i = 0; i < n; i++)
+					_bench_create("/d/f" + i);
+
+				long[] lookup = new long[2];
+				long[] create = new long[2];
+				for (int k = 0; k < OPS; k++) {
+					_bench_cold(lookup, "/d/f" + random.nextInt(n), false);
+					_bench_cold(create, "/d/g" + k, true);
+				}
+				TFSFileSystem.tfs_exit();
+
+				out.printf("%-6s N=%6d  cold lookup %7.1f blocks %9.1f us  cold create %7.1f blocks %9.1f us%n",
+					features == 0 ? "linear" : "hashed", n, (double)lookup[0] / OPS, lookup[1] / 1e3 / OPS,
+					(double)create[0] / OPS, create[1] / 1e3 / OPS);
+			}
+	}
+
+	//Mount again, then open or create path, adding the block reads and nanoseconds it took to total
+	private static void _bench_cold(long[] total, String path, boolean create)
+	{
+		TFSFileSystem.tfs_umount();
+		TFSFileSystem.tfs_mount();
+
+		TFSIOStats stats = TFSDiskInputOutput.tfs_dio_get_stats();
+		long reads = stats.cache_hits + stats.cache_misses;
+		long start = System.nanoTime();
+		if (create)
+			_bench_create(path);
+		else {
+			int fd = TFSFileSystem.tfs_open(path.getBytes(), path.length());
+			if (fd < 0)
+				throw new IllegalStateException("cannot open " + path);
+			TFSFileSystem.tfs_close(fd);
+		}
+		total[1] += System.nanoTime() - start;
+		total[0] += stats.cache_hits + stats.cache_misses - reads;
+	}
+
+	private static void _bench_create(String path)
+	{
+		int fd = TFSFileSystem.tfs_create(path.getBytes(), path.length());
+		if (fd < 0)
+			throw new IllegalStateException("cannot create " + path);
+		TFSFileSystem.tfs_close(fd);
+	}
+}
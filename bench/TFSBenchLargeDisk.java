@@ -0,0 +1,74 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * Disk images larger than 2 GB
+ *
+ * Makes a 3 GB file system with 4 KB blocks in TFSDiskFile (sparse on the
+ * host), with the raf and the mmap backend. For each it writes the last
+ * block of the disk, past the 2 GB offset, and reads it back, then writes
+ * a file, times mounting the file system again (which reads its 3 MB FAT),
+ * taking the fastest of MOUNTS mounts, and checks the file survived.
+ *
+ *   javac -d out src/*.java bench/TFSBenchLargeDisk.java
+ *   java -cp out TFSBenchLargeDisk [disk_size_in_GB]
+ */
+
+public class TFSBenchLargeDisk
+{
+	static final int BLOCK_SIZE = 4096;
+	static final int FILE_SIZE = 60000;  // fits the 16-bit size field of the original directory entries
+	static final int MOUNTS = 5;
+
+	public static void main(String argv[])
+	{
+		long disk_size = (argv.length > 0 ? Long.parseLong(argv[0]) : 3) << 30;
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // the file system reports every call
+		new TFSFileSystem();
+
+		for (int mode : new int[] { TFSDiskInputOutput.DIO_RAF, TFSDiskInputOutput.DIO_MMAP }) {
+			if (TFSFileSystem.tfs_mkfs(mode, BLOCK_SIZE, disk_size) < 0 || TFSFileSystem.tfs_mount() < 0) {
+				out.println("mkfs failed");
+				return;
+			}
+
+			// the last block lies past the 2 GB offset
+
+			int last = TFSDiskInputOutput.tfs_dio_get_size() - 1;
+			byte[] block = new byte[BLOCK_SIZE];
+			byte[] read = new byte[BLOCK_SIZE];
+			Arrays.fill(block, (byte)0x5A);
+			TFSDiskInputOutput.tfs_dio_write_block(last, block);
+			TFSDiskInputOutput.tfs_dio_read_block(last, read);
+			boolean last_ok = Arrays.equals(block, read);
+
+			// a file written before umount reads back after mount
+
+			byte[] data = new byte[FILE_SIZE];
+			new Random(1).nextBytes(data);
+			int fd = TFSFileSystem.tfs_create("/f".getBytes(), 2);
+			TFSFileSystem.tfs_write(fd, data, data.length, "/f".getBytes());
+			TFSFileSystem.tfs_close(fd);
+
+			long mount_nanos = Long.MAX_VALUE;
+			for (int i = 0; i < MOUNTS; i++) {
+				TFSFileSystem.tfs_umount();
+				long start = System.nanoTime();
+				TFSFileSystem.tfs_mount();
+				mount_nanos = Math.min(mount_nanos, System.nanoTime() - start);
+			}
+
+			byte[] back = new byte[FILE_SIZE];
+			fd = TFSFileSystem.tfs_open("/f".getBytes(), 2);
+			TFSFileSystem.tfs_read(fd, back, back.length);
+			TFSFileSystem.tfs_close(fd);
+			boolean file_ok = Arrays.equals(data, back);
+			TFSFileSystem.tfs_exit();
+
+			out.printf("%-4s %d blocks: last block at byte %d %s, mount %.1f ms, file after mount %s%n",
+				mode == TFSDiskInputOutput.DIO_RAF ? "raf" : "mmap", last + 1, (long)last * BLOCK_SIZE,
+				last_ok ? "ok" : "WRONG", mount_nanos / 1e6, file_ok ? "ok" : "WRONG");
+		}
+	}
+}
@@ -0,0 +1,72 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * Sequential throughput of the striped backend
+ *
+ * Makes a 256 MB file system with 4 KB blocks on the plain raf backend and
+ * on striped disks of 1, 2 and 4 members with a 64 KB stripe unit, writes
+ * a 128 MB file in 8 MB writes and syncs, then reads it back, and prints
+ * MB/s for both. The members go in the current directory, or round-robin
+ * in the directories given, which should sit on different host disks for
+ * striping to gain anything.
+ *
+ *   javac -d out src/*.java bench/TFSBenchStripe.java
+ *   java -cp out TFSBenchStripe [member_directory ...]
+ */
+
+public class TFSBenchStripe
+{
+	static final int BLOCK_SIZE = 4096;
+	static final long DISK_SIZE = 256L << 20;
+	static final int STRIPE_UNIT = 64 << 10;
+	static final int CHUNK = 8 << 20;
+	static final int CHUNKS = 16;
+
+	public static void main(String argv[])
+	{
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // the file system reports every call
+		new TFSFileSystem();
+
+		byte[] data = new byte[CHUNK];
+		new Random(1).nextBytes(data);
+
+		for (int stripes : new int[] { 0, 1, 2, 4 }) {
+			int mode = TFSDiskInputOutput.DIO_RAF;
+			if (stripes > 0) {
+				String[] paths = null;
+				if (argv.length > 0) {
+					paths = new String[stripes];
+					for (int i = 0; i < stripes; i++)
+						paths[i] = new File(argv[i % argv.length], "TFSDiskFile." + i).getPath();
+				}
+				mode = TFSDiskInputOutput.DIO_STRIPED;
+				TFSDiskInputOutput.tfs_dio_set_stripes(stripes, STRIPE_UNIT, paths);
+			}
+			if (TFSFileSystem.tfs_mkfs(mode, BLOCK_SIZE, DISK_SIZE) < 0 || TFSFileSystem.tfs_mount() < 0) {
+				out.println("mkfs failed");
+				return;
+			}
+
+			int fd = TFSFileSystem.tfs_create("/f".getBytes(), 2);
+			long start = System.nanoTime();
+			for (int i = 0; i < CHUNKS; i++)
+				TFSFileSystem.tfs_write(fd, data, data.length, "/f".getBytes());
+			TFSFileSystem.tfs_sync();
+			long write_nanos = System.nanoTime() - start;
+
+			TFSFileSystem.tfs_seek(fd, 0);
+			start = System.nanoTime();
+			for (int i = 0; i < CHUNKS; i++)
+				TFSFileSystem.tfs_read(fd, data, data.length);
+			long read_nanos = System.nanoTime() - start;
+			TFSFileSystem.tfs_close(fd);
+			TFSFileSystem.tfs_exit();
+
+			double mb = (double)CHUNK * CHUNKS / (1 << 20);
+			out.printf("%-9s write %6.0f MB/s  read %6.0f MB/s%n", stripes == 0 ? "raf" : stripes + " stripe" + (stripes > 1 ? "s" : ""),
+				mb / (write_nanos / 1e9), mb / (read_nanos / 1e9));
+		}
+	}
+}
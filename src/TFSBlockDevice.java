@@ -0,0 +1,31 @@
+import java.io.*;
+import java.nio.*;
+
+/*
+ * A disk that TFSDiskInputOutput reads blocks from and writes blocks to.
+ * Offsets are byte offsets from the start of the disk; TFSDiskInputOutput
+ * turns block numbers into offsets so the device does not care about
+ * the block size.
+ */
+
+public interface TFSBlockDevice
+{
+	//Returns the size of the device in bytes
+	long length() throws IOException;
+
+	//Fill dst from its position to its limit with the bytes starting at offset
+	void read(long offset, ByteBuffer dst) throws IOException;
+
+	//Write src from its position to its limit to the bytes starting at offset
+	void write(long offset, ByteBuffer src) throws IOException;
+
+	//The bytes in the range are no longer needed and may be released
+	//Reads of the range may return anything until it is written again
+	//Java cannot punch holes in a file or give back part of a buffer, so no backend releases anything yet
+	void discard(long offset, long length) throws IOException;
+
+	//Make every write so far durable on the backing store
+	void sync() throws IOException;
+
+	void close() throws IOException;
+}
@@ -0,0 +1,192 @@
+import java.util.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+/*
+ * Asynchronous block write queue in front of TFSDiskInputOutput
+ *
+ * Writes are handed to a dedicated I/O thread which takes everything
+ * queued so far as one batch, sorts it by block number (elevator order),
+ * merges adjacent blocks into single vectored disk requests and then
+ * completes the futures. Reads do not go through the thread: the caller
+ * takes pending() for the blocks it wants and reads the rest straight from
+ * the disk, so it always sees its own writes without waiting for them.
+ * A discarded block is queued too, behind the writes before it, so an
+ * earlier write cannot land on the block after it is freed; until then
+ * the block reads as zeros, as a discarded block does.
+ */
+
+public class TFSBlockQueue extends Thread
+{
+	private static class Request
+	{
+		int block_no;
+		byte[] buf;
+		boolean is_discard;
+		CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+	}
+
+	private ArrayList<Request> queued = new ArrayList<Request>();
+	private HashMap<Integer, byte[]> pending_writes = new HashMap<Integer, byte[]>();  // latest data per block not yet on disk
+	private boolean busy = false;
+	private boolean stopping = false;
+
+	public TFSBlockQueue()
+	{
+		setName("tfs-block-queue");
+		setDaemon(true);
+		start();
+	}
+
+	//Queue a write of buf into block_no; buf is copied so the caller may reuse it
+	public synchronized CompletableFuture<Integer> submit_write(int block_no, byte[] buf)
+	{
+		Request r = new Request();
+		r.block_no = block_no;
+		r.buf = Arrays.copyOf(buf, TFSDiskInputOutput.tfs_dio_get_block_size());
+
+		pending_writes.put(block_no, r.buf);
+		queued.add(r);
+		notifyAll();
+		return r.done;
+	}
+
+	//Queue a discard of block_no, done after the writes queued before it
+	public synchronized CompletableFuture<Integer> submit_discard(int block_no)
+	{
+		Request r = new Request();
+		r.block_no = block_no;
+		r.buf = new byte[TFSDiskInputOutput.tfs_dio_get_block_size()];
+		r.is_discard = true;
+
+		pending_writes.put(block_no, r.buf);
+		queued.add(r);
+		notifyAll();
+		return r.done;
+	}
+
+	//Returns what a read of each block in block_nos has to see in place of the disk:
+	//the data of its latest queued write or discard, null where nothing is queued
+	//Take it before reading the disk, whatever is not queued then is on the disk already
+	public synchronized byte[][] pending(int[] block_nos)
+	{
+		byte[][] data = null;
+		for (int i = 0; i < block_nos.length; i++) {
+			byte[] d = pending_writes.get(block_nos[i]);
+			if (d == null)
+				continue;
+			if (data == null)
+				data = new byte[block_nos.length][];
+			data[i] = d;
+		}
+		return data;
+	}
+
+	//Wait until every request submitted so far has completed
+	public synchronized void drain()
+	{
+		try {
+			while (!queued.isEmpty() || busy)
+				wait();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//Finish the queued requests and stop the I/O thread
+	public void shutdown()
+	{
+		synchronized (this) {
+			stopping = true;
+			notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run()
+	{
+		while (true) {
+			ArrayList<Request> batch;
+			synchronized (this) {
+				try {
+					while (queued.isEmpty() && !stopping)
+						wait();
+				} catch (InterruptedException ie) {
+					return;
+				}
+				if (queued.isEmpty())
+					return;
+				batch = queued;
+				queued = new ArrayList<Request>();
+				busy = true;
+			}
+
+			_tfs_queue_service(batch);
+
+			synchronized (this) {
+				busy = false;
+				notifyAll();
+			}
+		}
+	}
+
+	//Serve one batch: all writes, then all discards, each in block order
+	//Of the writes and discards of a block only the last one is done, so the two sets never share a block
+	private void _tfs_queue_service(ArrayList<Request> batch)
+	{
+		int block_size = TFSDiskInputOutput.tfs_dio_get_block_size();
+		TreeMap<Integer, byte[]> writes = new TreeMap<Integer, byte[]>();
+		TreeMap<Integer, byte[]> discards = new TreeMap<Integer, byte[]>();
+
+		for (Request r : batch) {
+			if (r.is_discard) {
+				discards.put(r.block_no, r.buf);
+				writes.remove(r.block_no);
+			}
+			else {
+				writes.put(r.block_no, r.buf);  // a later write to the same block wins
+				discards.remove(r.block_no);
+			}
+		}
+
+		int write_result = 0;
+		if (!writes.isEmpty()) {
+			int[] block_nos = _tfs_queue_keys(writes.keySet());
+			ByteBuffer bbuf = ByteBuffer.allocate(block_nos.length * block_size);
+			for (byte[] data : writes.values())
+				bbuf.put(data);
+			bbuf.flip();
+			write_result = TFSDiskInputOutput.tfs_dio_write_blocks(block_nos, bbuf);
+
+			synchronized (this) {
+				for (Map.Entry<Integer, byte[]> e : writes.entrySet())
+					pending_writes.remove(e.getKey(), e.getValue());
+			}
+		}
+
+		if (!discards.isEmpty()) {
+			for (int block_no : discards.keySet())
+				TFSDiskInputOutput.tfs_dio_discard_block(block_no);
+			synchronized (this) {
+				for (Map.Entry<Integer, byte[]> e : discards.entrySet())
+					pending_writes.remove(e.getKey(), e.getValue());
+			}
+		}
+
+		for (Request r : batch)
+			r.done.complete(r.is_discard ? 0 : write_result);
+	}
+
+	private static int[] _tfs_queue_keys(Set<Integer> keys)
+	{
+		int[] block_nos = new int[keys.size()];
+		int i = 0;
+		for (int block_no : keys)
+			block_nos[i++] = block_no;
+		return block_nos;
+	}
+}
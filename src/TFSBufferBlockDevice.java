@@ -0,0 +1,61 @@
+import java.io.*;
+import java.nio.*;
+
+/*
+ * Block device kept in ByteBuffers (memory-mapped or off-heap)
+ * A single ByteBuffer holds at most 2 GB, so the disk is split into
+ * SEGMENT_SIZE pieces and requests crossing a segment boundary are split
+ */
+
+public abstract class TFSBufferBlockDevice implements TFSBlockDevice
+{
+	static final int SEGMENT_SIZE = 1 << 30;  // a multiple of every block size
+
+	protected ByteBuffer[] segments;
+	protected long length;
+
+	//Number of segments needed for a disk of length bytes
+	protected static int _tfs_segment_count(long length)
+	{
+		return (int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+	}
+
+	//Size of segment i of a disk of length bytes
+	protected static int _tfs_segment_size(long length, int i)
+	{
+		return (int)Math.min(SEGMENT_SIZE, length - (long)i * SEGMENT_SIZE);
+	}
+
+	public long length()
+	{
+		return length;
+	}
+
+	public void read(long offset, ByteBuffer dst) throws IOException
+	{
+		while (dst.hasRemaining()) {
+			ByteBuffer segment = segments[(int)(offset / SEGMENT_SIZE)];
+			int segment_offset = (int)(offset % SEGMENT_SIZE);
+			int n = Math.min(dst.remaining(), segment.capacity() - segment_offset);
+			dst.put(segment.slice(segment_offset, n));
+			offset += n;
+		}
+	}
+
+	public void discard(long offset, long length) throws IOException
+	{
+		//Nothing to release inside a mapping or a direct buffer
+	}
+
+	public void write(long offset, ByteBuffer src) throws IOException
+	{
+		while (src.hasRemaining()) {
+			ByteBuffer segment = segments[(int)(offset / SEGMENT_SIZE)];
+			int segment_offset = (int)(offset % SEGMENT_SIZE);
+			int n = Math.min(src.remaining(), segment.capacity() - segment_offset);
+			segment.put(segment_offset, src, src.position(), n);
+			src.position(src.position() + n);
+			offset += n;
+		}
+	}
+}
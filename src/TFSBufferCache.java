@@ -0,0 +1,122 @@
+import java.util.*;
+
+/*
+ * Fixed number of block buffers kept in memory by TFSDiskInputOutput
+ *
+ * Each slot holds one block and a dirty flag. When a slot is needed the
+ * CLOCK hand sweeps the slots, giving recently used ones (referenced bit
+ * set) a second chance. The cache only keeps the data; reading missing
+ * blocks and writing dirty ones back is up to the caller, which holds the
+ * TFSDiskInputOutput lock around every call.
+ */
+
+public class TFSBufferCache
+{
+	private int[] slot_block;  // block number held by each slot, -1 if empty
+	private byte[][] slot_data;
+	private boolean[] referenced;
+	private boolean[] dirty;
+	private HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>();  // block number -> slot
+	private int hand = 0;
+
+	public TFSBufferCache(int capacity, int block_size)
+	{
+		slot_block = new int[capacity];
+		slot_data = new byte[capacity][block_size];
+		referenced = new boolean[capacity];
+		dirty = new boolean[capacity];
+		Arrays.fill(slot_block, -1);
+	}
+
+	//Returns the slot holding block_no and marks it used, or -1 if it is not cached
+	int lookup(int block_no)
+	{
+		Integer slot = slots.get(block_no);
+		if (slot == null)
+			return -1;
+		referenced[slot] = true;
+		return slot;
+	}
+
+	//Pick the slot to reuse for a new block
+	//If it is dirty the caller has to write it back before calling assign
+	int victim()
+	{
+		while (slot_block[hand] != -1 && referenced[hand]) {
+			referenced[hand] = false;
+			hand = (hand + 1) % slot_block.length;
+		}
+		int slot = hand;
+		hand = (hand + 1) % slot_block.length;
+		return slot;
+	}
+
+	//Make slot hold block_no (clean, contents still to be filled in)
+	void assign(int slot, int block_no)
+	{
+		if (slot_block[slot] != -1)
+			slots.remove(slot_block[slot]);
+		slot_block[slot] = block_no;
+		slots.put(block_no, slot);
+		referenced[slot] = true;
+		dirty[slot] = false;
+	}
+
+	//Forget block_no, dirty or not
+	void drop(int block_no)
+	{
+		Integer slot = slots.remove(block_no);
+		if (slot == null)
+			return;
+		slot_block[slot] = -1;
+		referenced[slot] = false;
+		dirty[slot] = false;
+	}
+
+	//Returns the slot holding block_no without marking it used, -1 if none
+	int find(int block_no)
+	{
+		Integer slot = slots.get(block_no);
+		return slot == null ? -1 : slot;
+	}
+
+	byte[] data(int slot)
+	{
+		return slot_data[slot];
+	}
+
+	int block(int slot)
+	{
+		return slot_block[slot];
+	}
+
+	boolean is_dirty(int slot)
+	{
+		return dirty[slot];
+	}
+
+	void set_dirty(int slot, boolean is_dirty)
+	{
+		dirty[slot] = is_dirty;
+	}
+
+	//Returns the slots of all dirty blocks in block number order
+	int[] dirty_slots()
+	{
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		for (int slot = 0; slot < slot_block.length; slot++)
+			if (slot_block[slot] != -1 && dirty[slot])
+				list.add(slot);
+		list.sort((a, b) -> Integer.compare(slot_block[a], slot_block[b]));
+
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = list.get(i);
+		return result;
+	}
+
+	int capacity()
+	{
+		return slot_block.length;
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.*;
+
+/*
+ * Directory entry (dentry) cache of TFSFileSystem
+ *
+ * Remembers where the entry of a name sits in a directory (block and slot)
+ * together with its type, first block and size, keyed both by (first block
+ * of the directory, name) and by the full path the entry was reached by.
+ * Names that were looked up and not found are remembered as well.
+ * TFSFileSystem reports every change it makes to a directory, so nothing
+ * goes stale; beyond MAX_ENTRIES the least recently used names are dropped.
+ */
+
+public class TFSDentryCache
+{
+	static final int MAX_ENTRIES = 8192;
+
+	static class Dentry
+	{
+		int parent_block_no;
+		String name;
+		int entry_block_no = -1;  // -1 if the directory has no entry with this name
+		int slot;
+		byte is_directory;
+		int fbn;
+		int size;
+		String path = null;  // full path the entry is cached under, if any
+	}
+
+	private TreeMap<String, Dentry> by_path = new TreeMap<String, Dentry>();
+	@SuppressWarnings("serial")
+	private LinkedHashMap<String, Dentry> by_name = new LinkedHashMap<String, Dentry>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Dentry> eldest)
+		{
+			if (size() <= MAX_ENTRIES)
+				return false;
+			_tfs_forget_paths(eldest.getValue());
+			return true;
+		}
+	};
+
+	//Returns the cached entry of name in the directory starting at parent_block_no, null if unknown
+	Dentry get(int parent_block_no, String name)
+	{
+		return by_name.get(_tfs_key(parent_block_no, name));
+	}
+
+	//Cache d, replacing what was known about its name
+	void put(Dentry d)
+	{
+		Dentry old = by_name.put(_tfs_key(d.parent_block_no, d.name), d);
+		if (old != null && old != d)
+			_tfs_forget_paths(old);
+	}
+
+	//Forget name in the directory starting at parent_block_no, and every path going through it
+	void remove(int parent_block_no, String name)
+	{
+		Dentry d = by_name.remove(_tfs_key(parent_block_no, name));
+		if (d != null)
+			_tfs_forget_paths(d);
+	}
+
+	//The entry of name was moved to another slot of the directory
+	void move(int parent_block_no, String name, int entry_block_no, int slot)
+	{
+		Dentry d = by_name.get(_tfs_key(parent_block_no, name));
+		if (d == null)
+			return;
+		d.entry_block_no = entry_block_no;
+		d.slot = slot;
+	}
+
+	//Returns the entry cached under the normalized full path, null if unknown
+	Dentry get_path(String path)
+	{
+		return by_path.get(path);
+	}
+
+	//Cache d under path as well; d must already be cached by name
+	void put_path(String path, Dentry d)
+	{
+		d.path = path;
+		by_path.put(path, d);
+	}
+
+	void clear()
+	{
+		by_name.clear();
+		by_path.clear();
+	}
+
+	//Drop the path of d and the paths of everything below it
+	private void _tfs_forget_paths(Dentry d)
+	{
+		if (d.path == null)
+			return;
+		by_path.remove(d.path);
+		by_path.subMap(d.path + "/", d.path + "0").clear();  // '0' follows '/'
+		d.path = null;
+	}
+
+	private static String _tfs_key(int parent_block_no, String name)
+	{
+		return parent_block_no + "/" + name;
+	}
+}
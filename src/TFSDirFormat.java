@@ -0,0 +1,246 @@
+import java.util.*;
+
+/*
+ * Layout of the entries in the blocks of a TFS directory
+ *
+ * In versions 1 and 2 a directory block is an array of fixed-size entries,
+ * entry i of the directory being in slot i % (entries per block) of block
+ * i / (entries per block). The first bytes of every slot are left unused,
+ * so the first block of a directory can keep the number of entries of the
+ * whole directory there. Version 1, the original format, keeps that count,
+ * the block numbers and the size in 2 bytes, so they wrap at 65535;
+ * version 2 keeps them in 4 bytes. The unused bytes of the second slot of
+ * the first block hold where the hash index of the directory starts, if it
+ * has one.
+ *
+ * Version 3 packs the entries. Every block starts with the number of
+ * entries of the directory and where its hash index starts (both only set
+ * in the first block) and the number of entries in the block; the entries
+ * follow one after another, each as long as its name, without the parent
+ * block number and reserved bytes. Slots are counted in order within a
+ * block; a deleted entry's slot is taken by the last entry of the block and
+ * the others keep theirs, so a block and a slot still tell where an entry
+ * is. A renamed entry whose longer name no longer fits moves elsewhere.
+ *
+ * All fields are little-endian. The PCB records which version a file system
+ * uses, and TFSFileSystem reads and writes its directories through the
+ * matching instance.
+ */
+
+public class TFSDirFormat
+{
+	static final TFSDirFormat V1 = new TFSDirFormat(1, 2, false);
+	static final TFSDirFormat V2 = new TFSDirFormat(2, 4, false);
+	static final TFSDirFormat V3 = new TFSDirFormat(3, 4, true);
+	static final int NAME_SIZE = 16;  // the bytes of a name in a fixed-size entry, and of a name handed out
+
+	final int version;
+	final int int_size;  // bytes of the count, block number and size fields
+	final boolean packed;  // entries are as long as their names (version 3), not entry_size bytes each
+	final int entry_size;  // the size of an entry, of the largest one if packed
+	final int parentbn;  // the offsets of the fields from the start of an entry, -1 for those a packed entry lacks
+	final int is_dir;
+	final int name;
+	final int nlength;
+	final int reserved1;
+	final int reserved2;
+	final int fbn;
+	final int size;
+	final int index;  // where the first block keeps the first block of the hash index (TFSDirHash), 0 if none
+	final int block_count;  // where a packed block keeps the number of entries in it
+	final int header;  // the bytes before the first entry of a packed block
+
+	private TFSDirFormat(int version, int int_size, boolean packed)
+	{
+		this.version = version;
+		this.int_size = int_size;
+		this.packed = packed;
+		if (!packed) {
+			parentbn = int_size;  // after the bytes holding the count in the first slot
+			is_dir = parentbn + int_size;
+			name = is_dir + 1;
+			nlength = name + NAME_SIZE;
+			reserved1 = nlength + 1;
+			reserved2 = reserved1 + 1;
+			fbn = reserved2 + 1;
+			size = fbn + int_size;
+			entry_size = size + int_size;
+			index = entry_size;  // in the unused bytes that lead the second slot
+			block_count = -1;
+			header = 0;
+		}
+		else {
+			parentbn = reserved1 = reserved2 = -1;
+			fbn = 0;
+			size = fbn + int_size;
+			is_dir = size + int_size;
+			nlength = is_dir + 1;
+			name = nlength + 1;
+			entry_size = name + NAME_SIZE;
+			index = int_size;  // after the count of the directory
+			block_count = index + int_size;
+			header = block_count + 2;
+		}
+	}
+
+	//Returns the format with the given version number, null if there is none
+	static TFSDirFormat of(int version)
+	{
+		if (version == 1)
+			return V1;
+		if (version == 2)
+			return V2;
+		if (version == 3)
+			return V3;
+		return null;
+	}
+
+	//Returns true if value can be kept in a count, block number or size field
+	boolean fits(long value)
+	{
+		return value >= 0 && value <= (int_size == 2 ? 0xFFFF : Integer.MAX_VALUE);
+	}
+
+	int get_int(byte[] block, int offset)
+	{
+		int value = 0;
+		for (int i = int_size - 1; i >= 0; i--)
+			value = (value << 8) | (block[offset + i] & 0xFF);
+		return value;
+	}
+
+	void put_int(byte[] block, int offset, int value)
+	{
+		for (int i = 0; i < int_size; i++)
+			block[offset + i] = (byte)(value >> (8 * i));
+	}
+
+	//Returns the number of entries in block, the k-th block of a directory with no_entries entries
+	int entries(byte[] block, int k, int no_entries)
+	{
+		if (packed)
+			return (block[block_count] & 0xFF) | (block[block_count + 1] & 0xFF) << 8;
+		int per_block = block.length / entry_size;
+		return Math.max(0, Math.min(per_block, no_entries - k * per_block));
+	}
+
+	//Returns where the entry in slot of block starts
+	int entry(byte[] block, int slot)
+	{
+		if (!packed)
+			return slot * entry_size;
+		int offset = header;
+		for (int i = 0; i < slot; i++)
+			offset = next(block, offset);
+		return offset;
+	}
+
+	//Returns where the entry after the one starting at offset starts
+	int next(byte[] block, int offset)
+	{
+		return offset + (packed ? name + block[offset + nlength] : entry_size);
+	}
+
+	//Returns the name of the entry starting at offset, padded with zeros to NAME_SIZE bytes
+	byte[] get_name(byte[] block, int offset)
+	{
+		byte[] buf = new byte[NAME_SIZE];
+		System.arraycopy(block, offset + name, buf, 0, packed ? block[offset + nlength] : NAME_SIZE);
+		return buf;
+	}
+
+	//Returns the slot the next entry of a directory with no_entries entries takes in last_block, its last block
+	int next_slot(byte[] last_block, int no_entries)
+	{
+		return packed ? entries(last_block, 0, 0) : no_entries % (last_block.length / entry_size);
+	}
+
+	//Returns true if last_block, the last block of a directory with no_entries entries,
+	//has room for an entry with a name of nlength bytes
+	boolean has_room(byte[] last_block, int no_entries, int nlength)
+	{
+		if (!packed)
+			return no_entries == 0 || no_entries % (last_block.length / entry_size) != 0;
+		int count = entries(last_block, 0, 0);
+		return count < 0xFFFF && entry(last_block, count) + name + nlength <= last_block.length;
+	}
+
+	//Write an entry in slot of block; in a packed block slot has to be next_slot
+	void put_entry(byte[] block, int slot, int parent_block_no, byte is_directory, byte[] entry_name, int length,
+		int first_block_no, int file_size)
+	{
+		int offset = entry(block, slot);
+		if (!packed) {
+			put_int(block, offset + parentbn, parent_block_no);
+			for (int i = 0; i < NAME_SIZE; i++)
+				block[offset + name + i] = i < length ? entry_name[i] : 0;
+		}
+		else {
+			System.arraycopy(entry_name, 0, block, offset + name, length);
+			_tfs_set_entries(block, slot + 1);
+		}
+		block[offset + is_dir] = is_directory;
+		block[offset + nlength] = (byte)length;
+		put_int(block, offset + fbn, first_block_no);
+		put_int(block, offset + size, file_size);
+	}
+
+	//Give the entry in slot of block a name of length bytes
+	//Returns false if a packed block has no room for a longer name, and then nothing changes
+	boolean rename(byte[] block, int slot, byte[] entry_name, int length)
+	{
+		int offset = entry(block, slot);
+		if (!packed) {
+			for (int i = 0; i < NAME_SIZE; i++)
+				block[offset + name + i] = i < length ? entry_name[i] : 0;
+			block[offset + nlength] = (byte)length;
+			return true;
+		}
+
+		// the entries after it move by the difference
+
+		int old_length = block[offset + nlength];
+		int end = entry(block, entries(block, 0, 0));
+		int new_end = end - old_length + length;
+		if (new_end > block.length)
+			return false;
+		int rest = offset + name + old_length;
+		System.arraycopy(block, rest, block, rest - old_length + length, end - rest);
+		System.arraycopy(entry_name, 0, block, offset + name, length);
+		block[offset + nlength] = (byte)length;
+		if (new_end < end)
+			Arrays.fill(block, new_end, end, (byte)0);
+		return true;
+	}
+
+	//Remove the entry in slot of a packed block, moving the last entry of the block into its slot
+	//The entries in between keep their slots
+	void remove(byte[] block, int slot)
+	{
+		int count = entries(block, 0, 0);
+		int offset = entry(block, slot);
+		int length = name + block[offset + nlength];
+		int last = entry(block, count - 1);
+		int end = last + name + block[last + nlength];
+		byte[] moved = Arrays.copyOfRange(block, last, end);
+
+		// close the gap, then take the last entry off the end and put it where the gap was
+
+		System.arraycopy(block, offset + length, block, offset, end - offset - length);
+		end -= length;
+		if (slot < count - 1) {
+			end -= moved.length;
+			System.arraycopy(block, offset, block, offset + moved.length, end - offset);
+			System.arraycopy(moved, 0, block, offset, moved.length);
+			end += moved.length;
+		}
+		Arrays.fill(block, end, end + length, (byte)0);
+		_tfs_set_entries(block, count - 1);
+	}
+
+	private void _tfs_set_entries(byte[] block, int count)
+	{
+		block[block_count] = (byte)count;
+		block[block_count + 1] = (byte)(count >> 8);
+	}
+}
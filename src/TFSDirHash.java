@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/*
+ * A bucket of the on-disk hash index of a large TFS directory
+ *
+ * On a file system made with FEATURE_DIR_HASH a directory that outgrows
+ * HASH_MIN_BLOCKS blocks gets a hash index, mapping the hash of every name
+ * to the block and slot of its entry; the entries stay where they are, so
+ * whatever lists a directory reads it as before. The index is extendible
+ * hashing: a table of 2^depth bucket block numbers picked by the low depth
+ * bits of the hash. A full bucket splits on its next hash bit, doubling the
+ * table first if the bucket already uses all of its bits; past MAX_DEPTH
+ * bits a full bucket grows a chain of blocks instead. Every block of a
+ * bucket starts with its local depth and record count, then the records.
+ * TFSFileSystem reads and writes the blocks; this class holds one bucket.
+ */
+
+public class TFSDirHash
+{
+	static final int MAX_DEPTH = 16;  // the table never has more than 2^MAX_DEPTH entries
+	static final int HEADER = 8;  // local depth and count, at the start of every block of a bucket
+	static final int RECORD = 12;  // hash, block number and slot of an entry
+
+	int depth;  // the number of low hash bits all names in the bucket share
+	int count = 0;
+	int[] hash = new int[16];
+	int[] block_no = new int[16];
+	int[] slot = new int[16];
+
+	TFSDirHash(int depth)
+	{
+		this.depth = depth;
+	}
+
+	//The hash of a name, with its low bits mixed well enough to split on
+	static int hash(String name)
+	{
+		int h = name.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	//The number of records a block of a bucket holds
+	static int per_block(int block_size)
+	{
+		return (block_size - HEADER) / RECORD;
+	}
+
+	//Returns the number of blocks the bucket needs
+	int no_blocks(int block_size)
+	{
+		return Math.max(1, (count + per_block(block_size) - 1) / per_block(block_size));
+	}
+
+	void add(int h, int b, int s)
+	{
+		if (count == hash.length) {
+			hash = Arrays.copyOf(hash, count * 2);
+			block_no = Arrays.copyOf(block_no, count * 2);
+			slot = Arrays.copyOf(slot, count * 2);
+		}
+		hash[count] = h;
+		block_no[count] = b;
+		slot[count] = s;
+		count++;
+	}
+
+	//Returns the record of the entry at slot s of block b with hash h, -1 if there is none
+	int find(int h, int b, int s)
+	{
+		for (int i = 0; i < count; i++)
+			if (hash[i] == h && block_no[i] == b && slot[i] == s)
+				return i;
+		return -1;
+	}
+
+	//Remove record i, moving the last record into its place
+	void remove(int i)
+	{
+		count--;
+		hash[i] = hash[count];
+		block_no[i] = block_no[count];
+		slot[i] = slot[count];
+	}
+
+	//Move the records whose next hash bit is set into a new bucket; both then use one more bit
+	TFSDirHash split()
+	{
+		TFSDirHash other = new TFSDirHash(depth + 1);
+		int bit = 1 << depth;
+		for (int i = 0; i < count; )
+			if ((hash[i] & bit) != 0) {
+				other.add(hash[i], block_no[i], slot[i]);
+				remove(i);
+			}
+			else
+				i++;
+		depth++;
+		return other;
+	}
+
+	//Add the records kept in block, the k-th block of the bucket
+	void read_block(byte[] block, int k)
+	{
+		ByteBuffer bbuf = ByteBuffer.wrap(block);
+		depth = bbuf.getInt();
+		int total = bbuf.getInt();
+		int to = Math.min(total, (k + 1) * per_block(block.length));
+		for (int i = k * per_block(block.length); i < to; i++)
+			add(bbuf.getInt(), bbuf.getInt(), bbuf.getInt());
+	}
+
+	//Lay out the k-th block of the bucket in block
+	void write_block(byte[] block, int k)
+	{
+		ByteBuffer bbuf = ByteBuffer.wrap(block);
+		bbuf.putInt(depth);
+		bbuf.putInt(count);
+		int to = Math.min(count, (k + 1) * per_block(block.length));
+		for (int i = k * per_block(block.length); i < to; i++) {
+			bbuf.putInt(hash[i]);
+			bbuf.putInt(block_no[i]);
+			bbuf.putInt(slot[i]);
+		}
+	}
+}
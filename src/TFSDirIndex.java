@@ -0,0 +1,56 @@
+import java.util.*;
+
+/*
+ * In-memory name indexes of the directories TFSFileSystem is working in
+ *
+ * The index of a directory maps every name in it to the block and slot of
+ * its entry, and remembers the last block of the directory, so neither a
+ * lookup nor adding an entry has to scan the directory. An index is built
+ * by one scan the first time the directory is needed and then updated in
+ * place by every create, delete and rename; beyond MAX_DIRECTORIES the
+ * least recently used index is dropped. A directory with an on-disk hash
+ * index needs no names here; only where its index starts is remembered.
+ */
+
+public class TFSDirIndex
+{
+	static final int MAX_DIRECTORIES = 64;
+
+	static class Directory
+	{
+		HashMap<String, int[]> slots = new HashMap<String, int[]>();  // name -> { block_no, slot }, empty if hashed
+		int last_block_no;
+		int hash_block_no = 0;  // the first block of the on-disk hash index (TFSDirHash), 0 if there is none
+		int hash_depth;  // the number of hash bits the table of the hash index is indexed by
+	}
+
+	@SuppressWarnings("serial")
+	private LinkedHashMap<Integer, Directory> directories = new LinkedHashMap<Integer, Directory>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Directory> eldest)
+		{
+			return size() > MAX_DIRECTORIES;
+		}
+	};
+
+	//Returns the index of the directory starting at first_block_no, null if it has none
+	Directory get(int first_block_no)
+	{
+		return directories.get(first_block_no);
+	}
+
+	void put(int first_block_no, Directory dir)
+	{
+		directories.put(first_block_no, dir);
+	}
+
+	//The directory is gone (or its first block is reused)
+	void remove(int first_block_no)
+	{
+		directories.remove(first_block_no);
+	}
+
+	void clear()
+	{
+		directories.clear();
+	}
+}
@@ -1,89 +1,739 @@
 import java.io.*;
 import java.util.*;
+import java.nio.*;
+import java.util.concurrent.*;
 
 @SuppressWarnings("unused")
 public class TFSDiskInputOutput 
 {
-	static final int BLOCK_SIZE = 128;
-	static RandomAccessFile raf = null;
+	static final int DEFAULT_BLOCK_SIZE = 128;
+	static final int DIO_RAF = 0;  // seek + read/write on a host file
+	static final int DIO_MMAP = 1;  // whole host file mapped with FileChannel.map
+	static final int DIO_MEMORY = 2;  // off-heap RAM disk, never touches the host disk
+	static final int DIO_STRIPED = 3;  // striped over several host files, the disk file only lists them
+	static final String STRIPE_MAGIC = "TFS-STRIPED";
+	static final int DEFAULT_STRIPE_COUNT = 2;
+	static final int DEFAULT_STRIPE_UNIT = 64 * 1024;
+	static final int DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;  // bytes of block buffers
+	static final int MIN_CACHE_BLOCKS = 16;
+	static final int FREE_DISCARD = 0;  // freed blocks are handed to the device to release; no backend can yet, so they keep their old data
+	static final int FREE_ZERO = 1;  // freed blocks are overwritten with zeros, so their old data is gone from the device
+	static final int FREE_SKIP = 2;  // freed blocks are only forgotten; the device keeps their old data
+	static final int FREE_BATCH_SIZE = 1 << 20;  // bytes of freed blocks released or zeroed per device request
+	static final int FREE_DELAY = 10;  // ms the free worker waits for more blocks before it starts
+	static TFSBlockDevice device = null;
+	static TFSBlockQueue queue = null;  // started on first use
+	static ExecutorService read_ahead = null;  // fills the cache in the background, started on first use
+	static int dio_mode = DIO_RAF;
+	static int block_size = DEFAULT_BLOCK_SIZE;  // bytes per block, set by the file system before any block I/O
+	static BitSet written = null;  // blocks that may hold data; the others read as zeros without touching the device
+	static int stripe_count = DEFAULT_STRIPE_COUNT;  // layout of the next DIO_STRIPED disk created
+	static int stripe_unit = DEFAULT_STRIPE_UNIT;
+	static String[] stripe_paths = null;  // null means <name>.0 .. <name>.<stripe_count - 1>
+	static TFSIOStats stats = new TFSIOStats();  // counts every device request since start or the last reset
+	static TFSBufferCache cache = null;  // write-back cache of single block requests, null if disabled
+	static int cache_size = DEFAULT_CACHE_SIZE;
+	static int free_mode = FREE_DISCARD;
+	static BitSet freed = new BitSet();  // freed blocks the free worker has not released or zeroed yet
+	static Thread free_worker = null;  // started on first use
 	
 	/*
 	 * Disk I/O API
 	 */
 	 
 	public static int tfs_dio_create(byte[] name, int nlength, int size) 
+	{
+		return tfs_dio_create(name, nlength, size, DIO_RAF);
+	}
+	
+	//A DIO_MEMORY disk has no host file, so name is only used for the other modes
+	public static int tfs_dio_create(byte[] name, int nlength, int size, int mode) 
 	{
 		try {
+			if (mode == DIO_MEMORY) {
+				tfs_dio_attach(new TFSMemoryBlockDevice((long)size * block_size), mode);
+				written.clear();
+				System.out.println("tfs_dio_create: " + device.length() + " memory disk created");
+				return 0;
+			}
+			
 			File f = new File(new String(name, 0, nlength));
+			if (mode == DIO_STRIPED) {
+				tfs_dio_attach(_tfs_dio_create_striped(f, (long)size * block_size), mode);
+				written.clear();
+				System.out.println("tfs_dio_create: " + device.length() + " striped over " + stripe_count + " files created");
+				return 0;
+			}
+			
 			f.createNewFile();
-			raf = new RandomAccessFile(f, "rw");  
-
-			raf.setLength(size * BLOCK_SIZE);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");  
+			raf.setLength((long)size * block_size);
+			raf.close();
+			
+			tfs_dio_attach(_tfs_dio_open_file(f, mode), mode);
+			written.clear();
 		
-			System.out.println("tfs_dio_create: " + raf.length() + " file created");
-		} catch (IOException ie) {}
+			System.out.println("tfs_dio_create: " + device.length() + " file created");
+		} catch (IOException ie) {
+			return -1;
+		}
 		
 		return 0;
 	}	
 	
 	public static int tfs_dio_open(byte[] name, int nlength) 
+	{
+		return tfs_dio_open(name, nlength, DIO_RAF);
+	}
+	
+	//A DIO_MEMORY disk cannot be reopened, it has to be created
+	public static int tfs_dio_open(byte[] name, int nlength, int mode) 
 	{
 		try {
 			File f = new File(new String(name, 0, nlength));
-			if (!f.exists())
+			if (mode == DIO_MEMORY || !f.exists())
 				return -1;
 		
-			raf = new RandomAccessFile(f, "rw");  
+			tfs_dio_attach(_tfs_dio_open_file(f, mode), mode);
 
-			System.out.println("tfs_dio_open: " + raf.length() + " size file opened");
-		} catch (IOException ie) {}
+			System.out.println("tfs_dio_open: " + device.length() + " size file opened");
+		} catch (IOException ie) {
+			return -1;
+		}
 		
 		return 0;
 	}			
 	
-	//Returns disk size in blocks
+	//Set the layout used the next time a DIO_STRIPED disk is created
+	//paths names the member files (their number is then the stripe count), null derives them from the disk name
+	//An existing striped disk keeps the layout recorded in its disk file
+	public static int tfs_dio_set_stripes(int count, int unit, String[] paths) 
+	{
+		if (paths != null)
+			count = paths.length;
+		if (count < 1 || unit < 1)
+			return -1;
+		
+		stripe_count = count;
+		stripe_unit = unit;
+		stripe_paths = paths;
+		return 0;
+	}
+	
+	//Use an already constructed device as the disk
+	//Nothing is known about what it holds, so every block counts as written
+	public static void tfs_dio_attach(TFSBlockDevice dev, int mode) 
+	{
+		device = dev;
+		dio_mode = mode;
+		written = new BitSet();
+		written.set(0, tfs_dio_get_size());
+		freed.clear();
+		_tfs_dio_new_cache();
+	}
+	
+	//Set how many bytes of block buffers to keep, 0 disables the cache
+	//Dirty blocks of the old cache are written back first
+	public static synchronized int tfs_dio_set_cache_size(int size) 
+	{
+		if (size < 0 || _tfs_dio_flush_cache() < 0)
+			return -1;
+		
+		cache_size = size;
+		if (device != null)
+			_tfs_dio_new_cache();
+		return 0;
+	}
+	
+	//Returns the asynchronous request queue in front of the disk
+	public static TFSBlockQueue tfs_dio_get_queue() 
+	{
+		if (queue == null)
+			queue = new TFSBlockQueue();
+		return queue;
+	}
+	
+	//Set the size of the blocks that block numbers refer to
+	//What is known about written blocks was in the old block size, so it is forgotten
+	public static synchronized void tfs_dio_set_block_size(int size) 
+	{
+		if (size == block_size)
+			return;
+		
+		if (device != null) {
+			_tfs_dio_flush_cache();
+			_tfs_dio_free_all();
+			written = new BitSet();
+			written.set(0, (int)Math.min(tfs_dio_get_length() / size, Integer.MAX_VALUE));
+		}
+		block_size = size;
+		if (device != null)
+			_tfs_dio_new_cache();
+	}
+	
+	public static int tfs_dio_get_block_size() 
+	{
+		return block_size;
+	}
+	
+	//Returns the backend the disk is currently opened with
+	public static int tfs_dio_get_mode() 
+	{
+		return dio_mode;
+	}
+	
+	//Returns disk size in blocks, at most Integer.MAX_VALUE
 	public static int tfs_dio_get_size() 
+	{
+		return (int)Math.min(tfs_dio_get_length() / block_size, Integer.MAX_VALUE);
+	}							
+	
+	//Returns disk size in bytes
+	public static long tfs_dio_get_length() 
 	{
 		try {
-			return (int)(raf.length() / BLOCK_SIZE);
+			return device.length();
 		} catch (IOException ie) {}
 		
 		return 0;
 	}							
 	
-	public static int tfs_dio_read_block(int block_no, byte[] buf) 
+	//Served from the cache when the block is there; a missed block is cached after reading it
+	public static synchronized int tfs_dio_read_block(int block_no, byte[] buf) 
 	{
 		try {
-			if (buf.length < BLOCK_SIZE)
+			if (buf.length < block_size)
 				return -1;
 			
-			raf.seek(block_no * BLOCK_SIZE);
-			raf.read(buf, 0, BLOCK_SIZE);
-		} catch (IOException ie) {}
+			int slot = cache == null ? -1 : _tfs_dio_cache_lookup(block_no);
+			if (slot >= 0) {
+				System.arraycopy(cache.data(slot), 0, buf, 0, block_size);
+				return 0;
+			}
+			
+			_tfs_dio_read_device(new int[] { block_no }, ByteBuffer.wrap(buf, 0, block_size));
+			if (cache != null)
+				System.arraycopy(buf, 0, cache.data(_tfs_dio_cache_slot(block_no)), 0, block_size);
+		} catch (IOException ie) {
+			return -1;
+		}
 		
 		return 0;
 	}
 	
-	public static int tfs_dio_write_block(int block_no, byte[] buf)	
+	//With the cache enabled the block only goes to the device when it is evicted or synced
+	public static synchronized int tfs_dio_write_block(int block_no, byte[] buf)	
 	{
 		try {
-			if (buf.length < BLOCK_SIZE)
+			if (buf.length < block_size)
 				return -1;
 			
-			raf.seek(block_no * BLOCK_SIZE);
-			raf.write(buf, 0, BLOCK_SIZE);
-		} catch (IOException ie) {}
+			if (cache == null) {
+				_tfs_dio_write_device(new int[] { block_no }, ByteBuffer.wrap(buf, 0, block_size));
+				return 0;
+			}
+			
+			int slot = cache.find(block_no);
+			if (slot < 0)
+				slot = _tfs_dio_cache_slot(block_no);
+			System.arraycopy(buf, 0, cache.data(slot), 0, block_size);
+			cache.set_dirty(slot, true);
+			written.set(block_no);
+			freed.clear(block_no);
+		} catch (IOException ie) {
+			return -1;
+		}
 		
 		return 0;
 	}
 	
-	public static void tfs_dio_close() 
+	//Read the blocks in block_nos, in that order, into dst
+	//Cached blocks are copied from the cache, the others are read without being cached,
+	//so streaming through a large file does not push out the metadata blocks
+	public static synchronized int tfs_dio_read_blocks(int[] block_nos, ByteBuffer dst) 
 	{
 		try {
-			if (raf != null)
-				raf.close();
-		} catch (IOException ie) {}
+			if (dst.remaining() < block_nos.length * block_size)
+				return -1;
+			
+			if (cache == null) {
+				_tfs_dio_read_device(block_nos, dst);
+				return 0;
+			}
+			
+			int base = dst.position();
+			int[] missed = new int[block_nos.length];
+			int[] missed_at = new int[block_nos.length];  // index in block_nos of each missed block
+			int nmissed = 0;
+			for (int i = 0; i < block_nos.length; i++) {
+				int slot = _tfs_dio_cache_lookup(block_nos[i]);
+				if (slot >= 0)
+					dst.put(base + i * block_size, cache.data(slot), 0, block_size);
+				else {
+					missed[nmissed] = block_nos[i];
+					missed_at[nmissed++] = i;
+				}
+			}
+			
+			if (nmissed > 0) {
+				ByteBuffer tmp = nmissed == block_nos.length ? dst.slice(base, nmissed * block_size)
+						: ByteBuffer.allocate(nmissed * block_size);
+				_tfs_dio_read_device(Arrays.copyOf(missed, nmissed), tmp);
+				if (nmissed != block_nos.length)
+					for (int k = 0; k < nmissed; k++)
+						dst.put(base + missed_at[k] * block_size, tmp, k * block_size, block_size);
+			}
+			dst.position(base + block_nos.length * block_size);
+		} catch (IOException ie) {
+			return -1;
+		}
+		
+		return 0;
+	}
+	
+	//Write src to the blocks in block_nos, in that order
+	//The blocks go straight to the device; cached copies are refreshed and become clean
+	public static synchronized int tfs_dio_write_blocks(int[] block_nos, ByteBuffer src) 
+	{
+		try {
+			if (src.remaining() < block_nos.length * block_size)
+				return -1;
 			
+			int base = src.position();
+			_tfs_dio_write_device(block_nos, src);
+			if (cache != null)
+				for (int i = 0; i < block_nos.length; i++) {
+					int slot = cache.find(block_nos[i]);
+					if (slot < 0)
+						continue;
+					src.get(base + i * block_size, cache.data(slot), 0, block_size);
+					cache.set_dirty(slot, false);
+				}
+		} catch (IOException ie) {
+			return -1;
+		}
+		
+		return 0;
+	}
+	
+	//The block is free: it reads as zeros from now on, and the free worker
+	//releases or zeroes it on the device later, with the blocks freed around it
+	//Nothing is written, so freeing a block costs no disk I/O on the caller's thread
+	public static synchronized int tfs_dio_discard_block(int block_no) 
+	{
+		return tfs_dio_discard_blocks(block_no, 1);
+	}
+	
+	//Discard count blocks starting at first_block_no
+	public static synchronized int tfs_dio_discard_blocks(int first_block_no, int count) 
+	{
+		if (first_block_no < 0 || count <= 0)
+			return count == 0 ? 0 : -1;
+		
+		int end = first_block_no + count;
+		if (free_mode != FREE_SKIP) {
+			// only blocks that may hold data have anything to release
+			for (int i = written.nextSetBit(first_block_no); i >= 0 && i < end; i = written.nextSetBit(i)) {
+				int j = Math.min(written.nextClearBit(i), end);
+				freed.set(i, j);
+				i = j;
+			}
+			_tfs_dio_start_free_worker();
+			TFSDiskInputOutput.class.notifyAll();
+		}
+		written.clear(first_block_no, end);
+		if (cache != null)
+			for (int block_no = first_block_no; block_no < end; block_no++)
+				cache.drop(block_no);
+		stats.discards += count;
+		
+		return 0;
+	}
+	
+	//Forget count blocks starting at first_block_no, found free when the file system is mounted:
+	//they read as zeros from now on, but nothing is released or zeroed on the device,
+	//that was up to the free mode when they were freed
+	public static synchronized int tfs_dio_forget_blocks(int first_block_no, int count) 
+	{
+		if (first_block_no < 0 || count <= 0)
+			return count == 0 ? 0 : -1;
+		
+		int end = first_block_no + count;
+		written.clear(first_block_no, end);
+		if (cache != null)
+			for (int block_no = first_block_no; block_no < end; block_no++)
+				cache.drop(block_no);
+		
+		return 0;
+	}
+	
+	//Set what happens on the device to the blocks freed from now on: FREE_DISCARD, FREE_ZERO or FREE_SKIP
+	public static synchronized int tfs_dio_set_free_mode(int mode) 
+	{
+		if (mode < FREE_DISCARD || mode > FREE_SKIP)
+			return -1;
+		
+		free_mode = mode;
+		return 0;
+	}
+	
+	//Wait until the free worker has released or zeroed every block freed so far
+	public static synchronized void tfs_dio_drain_freed() 
+	{
+		_tfs_dio_free_all();
+	}
+	
+	//Returns the I/O counters; they are updated in place, so use copy() for a snapshot
+	public static TFSIOStats tfs_dio_get_stats() 
+	{
+		return stats;
+	}
+	
+	public static synchronized void tfs_dio_reset_stats() 
+	{
+		stats.reset();
+	}
+	
+	//Returns the I/O counters as printable text
+	public static synchronized String tfs_dio_prstats() 
+	{
+		return stats.report();
+	}
+	
+	//Read block_nos into the cache in the background, skipping the blocks already there
+	//Without a cache there is nowhere to keep them, so nothing is done
+	public static void tfs_dio_prefetch_blocks(int[] block_nos) 
+	{
+		if (cache == null || block_nos.length == 0)
+			return;
+		
+		if (read_ahead == null)
+			read_ahead = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "tfs-read-ahead");
+				t.setDaemon(true);
+				return t;
+			});
+		read_ahead.execute(() -> _tfs_dio_prefetch(block_nos));
+	}
+	
+	//Make every block written so far durable: write back the dirty cached blocks,
+	//then flush the device (mapped pages in DIO_MMAP mode)
+	public static synchronized void tfs_dio_sync() 
+	{
+		try {
+			if (device != null && _tfs_dio_flush_cache() == 0)
+				device.sync();
+		} catch (IOException ie) {}
+	}
+	
+	public static void tfs_dio_close() 
+	{
+		if (queue != null)
+			queue.shutdown();
+		queue = null;
+		if (read_ahead != null)
+			read_ahead.shutdownNow();
+		read_ahead = null;
+		
+		synchronized (TFSDiskInputOutput.class) {
+			try {
+				if (device != null) {
+					_tfs_dio_flush_cache();
+					_tfs_dio_free_all();
+					device.close();
+				}
+			} catch (IOException ie) {}
+		}
+		
+		device = null;
+		written = null;
+		freed.clear();
+		cache = null;
+		dio_mode = DIO_RAF;
 		return;
-	}					
-}
\ No newline at end of file
+	}
+	
+	//Read the blocks in block_nos from the device, bypassing the cache
+	//Runs of physically adjacent block numbers are read with one device call,
+	//blocks never written (or discarded) are filled with zeros instead
+	private static void _tfs_dio_read_device(int[] block_nos, ByteBuffer dst) throws IOException
+	{
+		if (block_nos.length == 0)
+			return;
+		
+		long start = System.nanoTime();
+		int base = dst.position();
+		int run;
+		for (int i = 0; i < block_nos.length; i += run) {
+			run = _tfs_dio_run_length(block_nos, i);
+			ByteBuffer part = dst.slice(base + i * block_size, run * block_size);
+			if (written.get(block_nos[i]))
+				device.read((long)block_nos[i] * block_size, part);
+			else {
+				while (part.hasRemaining())
+					part.put((byte)0);
+				stats.zero_blocks += run;
+			}
+		}
+		dst.position(base + block_nos.length * block_size);
+		stats.record(TFSIOStats.READ, block_nos[0], block_nos[block_nos.length - 1], block_nos.length, block_size,
+				System.nanoTime() - start);
+	}
+	
+	//Write src to the blocks in block_nos on the device, bypassing the cache
+	//Runs of physically adjacent block numbers are written with one device call
+	private static void _tfs_dio_write_device(int[] block_nos, ByteBuffer src) throws IOException
+	{
+		if (block_nos.length == 0)
+			return;
+		
+		long start = System.nanoTime();
+		int base = src.position();
+		int run;
+		for (int i = 0; i < block_nos.length; i += run) {
+			run = _tfs_dio_run_length(block_nos, i);
+			device.write((long)block_nos[i] * block_size, src.slice(base + i * block_size, run * block_size));
+			written.set(block_nos[i], block_nos[i] + run);
+			freed.clear(block_nos[i], block_nos[i] + run);
+		}
+		src.position(base + block_nos.length * block_size);
+		stats.record(TFSIOStats.WRITE, block_nos[0], block_nos[block_nos.length - 1], block_nos.length, block_size,
+				System.nanoTime() - start);
+	}
+	
+	//Runs on the read-ahead thread; the disk may have been closed since the request
+	private static synchronized void _tfs_dio_prefetch(int[] block_nos)
+	{
+		if (device == null || cache == null)
+			return;
+		
+		int[] missed = new int[block_nos.length];
+		int nmissed = 0;
+		for (int block_no : block_nos)
+			if (block_no < tfs_dio_get_size() && cache.find(block_no) < 0)
+				missed[nmissed++] = block_no;
+		if (nmissed == 0)
+			return;
+		
+		ByteBuffer buf = ByteBuffer.allocate(nmissed * block_size);
+		try {
+			_tfs_dio_read_device(Arrays.copyOf(missed, nmissed), buf);
+			for (int i = 0; i < nmissed; i++)
+				buf.get(i * block_size, cache.data(_tfs_dio_cache_slot(missed[i])), 0, block_size);
+		} catch (IOException ie) {
+			return;
+		}
+		stats.read_ahead_blocks += nmissed;
+	}
+	
+	//Returns the cache slot holding block_no, or -1 if it is not cached
+	private static int _tfs_dio_cache_lookup(int block_no)
+	{
+		int slot = cache.lookup(block_no);
+		if (slot >= 0)
+			stats.cache_hits++;
+		else
+			stats.cache_misses++;
+		return slot;
+	}
+	
+	//Returns a cache slot assigned to block_no, writing back the dirty block it held before
+	private static int _tfs_dio_cache_slot(int block_no) throws IOException
+	{
+		int slot = cache.victim();
+		if (cache.is_dirty(slot))
+			_tfs_dio_write_device(new int[] { cache.block(slot) }, ByteBuffer.wrap(cache.data(slot)));
+		cache.assign(slot, block_no);
+		return slot;
+	}
+	
+	//Write every dirty cached block back to the device in block order
+	private static int _tfs_dio_flush_cache()
+	{
+		if (cache == null)
+			return 0;
+		
+		int[] slots = cache.dirty_slots();
+		int[] block_nos = new int[slots.length];
+		ByteBuffer buf = ByteBuffer.allocate(slots.length * block_size);
+		for (int i = 0; i < slots.length; i++) {
+			block_nos[i] = cache.block(slots[i]);
+			buf.put(cache.data(slots[i]), 0, block_size);
+		}
+		buf.flip();
+		
+		try {
+			_tfs_dio_write_device(block_nos, buf);
+		} catch (IOException ie) {
+			return -1;
+		}
+		for (int slot : slots)
+			cache.set_dirty(slot, false);
+		return 0;
+	}
+	
+	private static void _tfs_dio_new_cache()
+	{
+		cache = null;
+		if (cache_size > 0)
+			cache = new TFSBufferCache(Math.max(cache_size / block_size, MIN_CACHE_BLOCKS), block_size);
+	}
+	
+	private static void _tfs_dio_start_free_worker()
+	{
+		if (free_worker != null)
+			return;
+		
+		free_worker = new Thread(TFSDiskInputOutput::_tfs_dio_free_worker, "tfs-free-worker");
+		free_worker.setDaemon(true);
+		free_worker.start();
+	}
+	
+	//Runs on the free worker: once blocks are freed, wait FREE_DELAY for the rest of a delete
+	//to free theirs, then release or zero them a run at a time, letting go of the lock between runs
+	private static void _tfs_dio_free_worker()
+	{
+		try {
+			while (true) {
+				synchronized (TFSDiskInputOutput.class) {
+					while (freed.isEmpty())
+						TFSDiskInputOutput.class.wait();
+				}
+				Thread.sleep(FREE_DELAY);
+				while (_tfs_dio_free_run())
+					;
+			}
+		} catch (InterruptedException ie) {
+			return;
+		}
+	}
+	
+	//Release or zero the first run of freed blocks, at most FREE_BATCH_SIZE bytes of it
+	//Returns false if there was nothing left to do
+	private static synchronized boolean _tfs_dio_free_run()
+	{
+		int first_block_no = freed.nextSetBit(0);
+		if (first_block_no < 0)
+			return false;
+		if (device == null) {
+			freed.clear();
+			return false;
+		}
+		
+		int count = Math.min(freed.nextClearBit(first_block_no) - first_block_no, Math.max(1, FREE_BATCH_SIZE / block_size));
+		freed.clear(first_block_no, first_block_no + count);
+		try {
+			if (free_mode == FREE_ZERO) {
+				// not through _tfs_dio_write_device: the blocks stay unwritten and keep reading as zeros
+				device.write((long)first_block_no * block_size, ByteBuffer.allocate(count * block_size));
+				stats.zeroed_blocks += count;
+			}
+			else if (free_mode == FREE_DISCARD)
+				device.discard((long)first_block_no * block_size, (long)count * block_size);
+			stats.free_runs++;
+		} catch (IOException ie) {}
+		return true;
+	}
+	
+	//Do the work the free worker has not done yet on this thread
+	private static void _tfs_dio_free_all()
+	{
+		while (_tfs_dio_free_run())
+			;
+	}
+	
+	//Number of consecutive block numbers starting at block_nos[from]
+	//that are all written or all unwritten
+	private static int _tfs_dio_run_length(int[] block_nos, int from)
+	{
+		int run = 1;
+		boolean is_written = written.get(block_nos[from]);
+		while (from + run < block_nos.length && block_nos[from + run] == block_nos[from] + run
+				&& written.get(block_nos[from + run]) == is_written)
+			run++;
+		return run;
+	}
+	
+	private static TFSBlockDevice _tfs_dio_open_file(File f, int mode) throws IOException
+	{
+		if (mode == DIO_STRIPED)
+			return _tfs_dio_open_striped(f);
+		if (mode == DIO_MMAP)
+			return new TFSMappedBlockDevice(f);
+		return new TFSRafBlockDevice(f);
+	}
+	
+	//Create the member files of a striped disk of at least length bytes
+	//and record the layout in f: the magic, the stripe unit, then one member path per line
+	private static TFSBlockDevice _tfs_dio_create_striped(File f, long length) throws IOException
+	{
+		String[] paths = stripe_paths;
+		if (paths == null) {
+			paths = new String[stripe_count];
+			for (int i = 0; i < stripe_count; i++)
+				paths[i] = f.getPath() + "." + i;
+		}
+		
+		//Every member holds the same whole number of stripe units
+		long per_member = (long)paths.length * stripe_unit;
+		long member_length = (length + per_member - 1) / per_member * stripe_unit;
+		for (String path : paths) {
+			RandomAccessFile raf = new RandomAccessFile(path, "rw");
+			raf.setLength(member_length);
+			raf.close();
+		}
+		
+		PrintWriter pw = new PrintWriter(new FileWriter(f));
+		pw.println(STRIPE_MAGIC);
+		pw.println(stripe_unit);
+		for (String path : paths)
+			pw.println(path);
+		pw.close();
+		if (pw.checkError())
+			throw new IOException("cannot write " + f);
+		
+		return _tfs_dio_open_striped(f);
+	}
+	
+	//Open the members listed in the disk file f
+	private static TFSBlockDevice _tfs_dio_open_striped(File f) throws IOException
+	{
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			String line = br.readLine();
+			if (line == null || !line.equals(STRIPE_MAGIC))
+				throw new IOException(f + " is not a striped disk");
+			while ((line = br.readLine()) != null)
+				lines.add(line);
+		} finally {
+			br.close();
+		}
+		if (lines.size() < 2)
+			throw new IOException(f + " is not a striped disk");
+		
+		int unit;
+		try {
+			unit = Integer.parseInt(lines.get(0));
+		} catch (NumberFormatException nfe) {
+			throw new IOException(f + " is not a striped disk");
+		}
+		
+		TFSBlockDevice[] members = new TFSBlockDevice[lines.size() - 1];
+		try {
+			for (int i = 0; i < members.length; i++) {
+				File member = new File(lines.get(i + 1));
+				if (!member.exists())
+					throw new FileNotFoundException(member.getPath());
+				members[i] = new TFSRafBlockDevice(member);
+			}
+		} catch (IOException ie) {
+			for (TFSBlockDevice member : members)
+				if (member != null)
+					member.close();
+			throw ie;
+		}
+		
+		return new TFSStripedBlockDevice(members, unit);
+	}
+}
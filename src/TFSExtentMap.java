@@ -0,0 +1,106 @@
+import java.util.*;
+
+/*
+ * The extents of a file on a TFS file system made with the extent format
+ *
+ * An extent is a run of contiguous disk blocks, given by its first block
+ * and its length; a file is its extents in order. The map also keeps the
+ * file block each extent starts at, so the disk block holding any file
+ * block is found by a binary search over the extents instead of a walk
+ * along a FAT chain. TFSFileSystem reads the map from the extent blocks of
+ * the file the first time it is needed and writes back what changes.
+ */
+
+public class TFSExtentMap
+{
+	private int[] file_block = new int[4];  // the file block each extent starts at
+	private int[] disk_block = new int[4];  // the first disk block of each extent
+	private int[] length = new int[4];
+	private int count = 0;
+	private int no_blocks = 0;
+
+	//Add no_blocks blocks starting at disk block first_block_no at the end of the file
+	//They extend the last extent if they follow right after it
+	void append(int first_block_no, int n)
+	{
+		if (count > 0 && disk_block[count - 1] + length[count - 1] == first_block_no) {
+			length[count - 1] += n;
+			no_blocks += n;
+			return;
+		}
+		if (count == file_block.length) {
+			file_block = Arrays.copyOf(file_block, count * 2);
+			disk_block = Arrays.copyOf(disk_block, count * 2);
+			length = Arrays.copyOf(length, count * 2);
+		}
+		file_block[count] = no_blocks;
+		disk_block[count] = first_block_no;
+		length[count] = n;
+		count++;
+		no_blocks += n;
+	}
+
+	//Returns the number of extents there would be after appending block_nos
+	int count_after(int[] block_nos)
+	{
+		int n = count;
+		int next = count > 0 ? disk_block[count - 1] + length[count - 1] : -1;
+		for (int block_no : block_nos) {
+			if (block_no != next)
+				n++;
+			next = block_no + 1;
+		}
+		return n;
+	}
+
+	//Returns the disk blocks holding count file blocks from file block start on
+	int[] blocks(int start, int n)
+	{
+		int[] block_nos = new int[n];
+		if (n == 0)
+			return block_nos;
+		int i = _tfs_find(start);
+		int offset = start - file_block[i];
+		for (int j = 0; j < n; j++) {
+			if (offset == length[i]) {
+				i++;
+				offset = 0;
+			}
+			block_nos[j] = disk_block[i] + offset++;
+		}
+		return block_nos;
+	}
+
+	//Returns the last disk block of the file, -1 if it has none
+	int last_block()
+	{
+		return count == 0 ? -1 : disk_block[count - 1] + length[count - 1] - 1;
+	}
+
+	int count()
+	{
+		return count;
+	}
+
+	int no_blocks()
+	{
+		return no_blocks;
+	}
+
+	int disk_block(int i)
+	{
+		return disk_block[i];
+	}
+
+	int length(int i)
+	{
+		return length[i];
+	}
+
+	//The extent holding file block index, 0 if the map is empty
+	private int _tfs_find(int index)
+	{
+		int i = Arrays.binarySearch(file_block, 0, count, index);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+}
@@ -10,21 +10,24 @@ public class TFSFileSystem
 	 */
 
 	static final String DISK_FILE = "TFSDiskFile";
-	static final int DISK_FILE_SIZE = 2048;  // blocks; should be exact times of BLOCK_SIZE
-	static final int BLOCK_SIZE = 128;  // blocks; should be exact times of 4
+	static final int DISK_FILE_SIZE = 2048;  // blocks
+	static final int DEFAULT_BLOCK_SIZE = 128;  // bytes; block sizes are powers of 2 between MIN and MAX
+	static final int MIN_BLOCK_SIZE = 128;
+	static final int MAX_BLOCK_SIZE = 65536;
+	static final int MAX_FS_BLOCKS = Integer.MAX_VALUE - 8;  // the FAT is an int[] indexed by block number
+	static final int FAT_IO_SIZE = 1 << 20;  // bytes of FAT moved per disk request
+	static final int MIN_READ_AHEAD = 4;  // blocks read ahead once a file is read sequentially
+	static final int MAX_READ_AHEAD_SIZE = 256 * 1024;  // bytes the read-ahead window may grow to
+	static final long DEFAULT_DIRTY_LIMIT = 4 << 20;  // bytes of appends kept in memory before blocks are allocated
 	static final int FS_MAGIC = 777;
-	static final int MAX_ENTRY_DIR = 4;  // the maximum number of entries in a block for a directory
-	static final int DIR_ENTRY_SIZE = 28;  // the size of each entry in a directory block
+	static final int ALLOC_FAT = 0;  // free blocks are a list threaded through the FAT
+	static final int ALLOC_BITMAP = 1;  // free blocks are a bitmap stored after the FAT
+	static final int FEATURE_EXTENTS = 1;  // files are lists of extents kept in extent blocks, not FAT chains
+	static final int FEATURE_DIR_HASH = 2;  // large directories get an on-disk hash index of their names, see TFSDirHash
+	static final int HASH_MIN_BLOCKS = 8;  // a directory gets a hash index once it needs more blocks than this (FEATURE_DIR_HASH)
+	static final int DIR_FORMAT = 3;  // the directory entry format version mkfs makes, see TFSDirFormat
 	static final int FDT_SIZE = 100;  // the maximum number of entries in FDT
 	static final int MAX_NAME_LENGTH = 15; //the maximum number of bytes a name can be
-	static final int PARENTBN = 2;	//the entry offset for parent_block_no
-	static final int IS_DIR = 4; //the entry offset for is_directory
-	static final int NAME = 5; //the entry offset for name
-	static final int NLENGTH = 21; //the entry offset for nlength
-	static final int RESERVED1 = 22; //the entry offset for reserved1
-	static final int RESERVED2 = 23; //the entry offset for reserved2
-	static final int FBN = 24; //the entry offset for first block no
-	static final int SIZE = 26; // the entry offset for size
 
 	/*
 	 * In-memory data structures
@@ -34,6 +37,7 @@ public class TFSFileSystem
 
 	private static boolean fs_mounted = false;
 	private static boolean fs_opened = false;
+	private static int io_batch_depth = 0;  // > 0 while block I/O goes through the async queue
 
 	// PCB
 
@@ -42,10 +46,26 @@ public class TFSFileSystem
 	private static int pcb_size_fs;  // the total number of blocks in the file system
 	private static int pcb_size_fat;  // the total number of blocks in FAT
 	private static int pcb_magic = 0;  // magic to see if the fs on the disk is an TFS file system
+	private static int pcb_block_size = DEFAULT_BLOCK_SIZE;  // the size of a block in bytes
+	private static int pcb_allocator = ALLOC_FAT;  // how free blocks are kept, ALLOC_FAT or ALLOC_BITMAP
+	private static int pcb_size_bitmap = 0;  // the total number of blocks in the free bitmap, 0 with ALLOC_FAT
+	private static int pcb_features = 0;  // FEATURE_ bits of the on-disk format, 0 for the original format
+	private static int pcb_dir_format = DIR_FORMAT;  // the version of the directory entry format, 1 on file systems made before there was a choice
+
+	private static TFSDirFormat dir_format = TFSDirFormat.of(DIR_FORMAT);  // the entry layout of pcb_dir_format
+	private static int max_entry_dir = DEFAULT_BLOCK_SIZE / dir_format.entry_size;  // the number of entries in a directory block with fixed-size entries (versions 1 and 2); packed blocks count their own
 
 	// FAT
 
 	private static int[] fat;  // FAT32
+	private static BitSet fat_dirty = new BitSet();  // FAT blocks (counted from 0) changed since they were last written
+	private static long fat_bytes_last_sync = 0;  // bytes of FAT the last _tfs_write_fat wrote
+	private static long fat_bytes_written = 0;  // bytes of FAT written since mkfs or mount
+
+	// free bitmap (ALLOC_BITMAP only)
+
+	private static TFSFreeSpace free_space = null;
+	private static BitSet bitmap_dirty = new BitSet();  // bitmap blocks (counted from 0) changed since they were last written
 
 	// FDT
 
@@ -57,6 +77,27 @@ public class TFSFileSystem
 	private static int[] fdt_first_block_no = new int[FDT_SIZE];
 	private static int[] fdt_parent_block_no = new int[FDT_SIZE];
 	private static int[] fdt_size = new int[FDT_SIZE];
+	private static int[][] fdt_block_map = new int[FDT_SIZE][];  // the blocks of the file in order, built on first use
+	private static int[] fdt_no_blocks = new int[FDT_SIZE];  // the number of valid block numbers in fdt_block_map
+	private static TFSExtentMap[] fdt_extents = new TFSExtentMap[FDT_SIZE];  // the extents of a file (FEATURE_EXTENTS), read on first use
+	private static byte[][] fdt_pending = new byte[FDT_SIZE][];  // bytes appended after fdt_size that have no blocks yet
+	private static int[] fdt_no_pending = new int[FDT_SIZE];  // the number of valid bytes in fdt_pending
+	private static int[] fdt_reserved = new int[FDT_SIZE];  // free blocks set aside for writing them
+
+	// delayed allocation: appends stay in memory until the file is flushed, closed, synced or memory runs short,
+	// so the allocator is asked once for all their blocks (ALLOC_BITMAP only, it knows how many blocks are free)
+
+	private static long dirty_limit = DEFAULT_DIRTY_LIMIT;  // bytes of appends all files may keep in memory, 0 writes them through
+	private static long dirty_bytes = 0;
+	private static int reserved_blocks = 0;  // free blocks promised to the appends in memory
+	private static int[] fdt_ra_next = new int[FDT_SIZE];  // where the last read ended; a read starting there is sequential
+	private static int[] fdt_ra_window = new int[FDT_SIZE];  // blocks to keep read ahead, 0 after a random read
+	private static int[] fdt_ra_end = new int[FDT_SIZE];  // the block index read ahead is issued up to (exclusive)
+
+	// directory entries looked up so far, and name indexes of the directories they are in
+
+	private static TFSDentryCache dentries = new TFSDentryCache();
+	private static TFSDirIndex dir_indexes = new TFSDirIndex();
 
 	/*
 	 * directory structure in TFS file system
@@ -73,8 +114,8 @@ public class TFSFileSystem
 	static byte[] name = new byte[16];
 	static int firstBlockNo;  // the first block number
 	static int size;  // the size of the file or sub-directory
-		// the size of each entry is 4 + 16 + 4 +4 = 28 bytes
-	// 128 % 28 = 4 => one block can hold maximum 4 entries
+	// how an entry is laid out in a directory block depends on the entry format (TFSDirFormat):
+	// 28 bytes in version 1, 36 in version 2, and in the packed version 3 the name plus 10 bytes
 	
 
 
@@ -94,23 +135,82 @@ public class TFSFileSystem
 	 */
 
 	public static int tfs_mkfs()
+	{
+		return tfs_mkfs(TFSDiskInputOutput.DIO_RAF);
+	}
+
+	//dio_mode selects the disk backend (TFSDiskInputOutput.DIO_RAF, DIO_MMAP or DIO_MEMORY)
+	public static int tfs_mkfs(int dio_mode)
+	{
+		return tfs_mkfs(dio_mode, DEFAULT_BLOCK_SIZE);
+	}
+
+	//block_size is the size of a block in bytes, a power of 2 from MIN_BLOCK_SIZE to MAX_BLOCK_SIZE
+	public static int tfs_mkfs(int dio_mode, int block_size)
+	{
+		return tfs_mkfs(dio_mode, block_size, 0);
+	}
+
+	//disk_size is the size of the disk in bytes; the disk is (re)created with that size
+	//0 keeps the disk that is there, or creates one of DISK_FILE_SIZE blocks
+	public static int tfs_mkfs(int dio_mode, int block_size, long disk_size)
+	{
+		return tfs_mkfs(dio_mode, block_size, disk_size, ALLOC_FAT);
+	}
+
+	//allocator picks how free blocks are kept: ALLOC_FAT, or ALLOC_BITMAP to allocate files contiguously
+	public static int tfs_mkfs(int dio_mode, int block_size, long disk_size, int allocator)
+	{
+		return tfs_mkfs(dio_mode, block_size, disk_size, allocator, 0);
+	}
+
+	//features are the FEATURE_ bits of the on-disk format to make, 0 for the original format
+	public static int tfs_mkfs(int dio_mode, int block_size, long disk_size, int allocator, int features)
+	{
+		return tfs_mkfs(dio_mode, block_size, disk_size, allocator, features, DIR_FORMAT);
+	}
+
+	//dir_version is the version of the directory entry format (see TFSDirFormat), 1 for the original format
+	public static int tfs_mkfs(int dio_mode, int block_size, long disk_size, int allocator, int features, int dir_version)
 	{
 		// if the file system is mounted, then return error
 
 		if (fs_mounted)
 			return -1;
+		if (!_tfs_valid_block_size(block_size))
+			return -1;
+		if (disk_size < 0 || disk_size / block_size > MAX_FS_BLOCKS)
+			return -1;
+		if (allocator != ALLOC_FAT && allocator != ALLOC_BITMAP)
+			return -1;
+		if ((features & ~(FEATURE_EXTENTS | FEATURE_DIR_HASH)) != 0)
+			return -1;
+		if (TFSDirFormat.of(dir_version) == null)
+			return -1;
 
 		// if the disk file system is not open, then open
 
-		if (!fs_opened)
-			if (TFSDiskInputOutput.tfs_dio_open(DISK_FILE.getBytes(), DISK_FILE.length()) < 0)
-				TFSDiskInputOutput.tfs_dio_create(DISK_FILE.getBytes(), DISK_FILE.length(), DISK_FILE_SIZE);
-		fs_opened = true;
+		_tfs_set_block_size(block_size);
+		if (_tfs_open_disk(dio_mode, true, (int)(disk_size / block_size)) < 0)
+			return -1;
 
 		// decide the size of the disk and the size of FAT
 
+		if (TFSDiskInputOutput.tfs_dio_get_length() / pcb_block_size > MAX_FS_BLOCKS)
+			return -1;
 		pcb_size_fs = TFSDiskInputOutput.tfs_dio_get_size();
-		pcb_size_fat = pcb_size_fs * 4 / BLOCK_SIZE;
+		pcb_size_fat = (int)(((long)pcb_size_fs * 4 + pcb_block_size - 1) / pcb_block_size);
+		pcb_allocator = allocator;
+		pcb_features = features;
+		_tfs_set_dir_format(dir_version);
+		pcb_size_bitmap = 0;
+		if (allocator == ALLOC_BITMAP)
+			pcb_size_bitmap = (int)(((long)pcb_size_fs + pcb_block_size * 8 - 1) / (pcb_block_size * 8));
+
+		// BCB, PCB, FAT, the bitmap, the root directory and at least one free block
+
+		if (pcb_size_fs < pcb_size_fat + pcb_size_bitmap + 4)
+			return -1;
 
 		// new FAT
 
@@ -120,25 +220,41 @@ public class TFSFileSystem
 
 		// initialize FAT
 
-		pcb_pointer_root = 2 + pcb_size_fat;  // 0: BCB, 1: PCB, blocks for FAT, ...
+		pcb_pointer_root = 2 + pcb_size_fat + pcb_size_bitmap;  // 0: BCB, 1: PCB, blocks for FAT, blocks for the bitmap, ...
 		fat[pcb_pointer_root] = -1;  // the first block for the root directory
 		pcb_pointer_free = pcb_pointer_root + 1;  // the free block list
-		for (int i = pcb_pointer_free; i < pcb_size_fs -1; i++)
-			fat[i] = i+1;
-		fat[pcb_size_fat-1] = -1;
+		if (allocator == ALLOC_FAT) {
+			for (int i = pcb_pointer_free; i < pcb_size_fs -1; i++)
+				fat[i] = i+1;
+			fat[pcb_size_fs-1] = -1;
+			free_space = null;
+		}
+		else {
+			// free blocks are found in the bitmap, their FAT entries stay -1
+			BitSet bits = new BitSet(pcb_size_fs);
+			bits.set(pcb_pointer_free, pcb_size_fs);
+			free_space = new TFSFreeSpace(pcb_size_fs, bits);
+			bitmap_dirty.set(0, pcb_size_bitmap);
+		}
+		fat_dirty.set(0, pcb_size_fat);
+		fat_bytes_written = 0;
 
 		// mark TFS file system
 
 		pcb_magic = FS_MAGIC;
 
-		// write PCB and FAT back into the disk
+		// write PCB and FAT back into the disk, whatever the free blocks hold is garbage now
 
 		_tfs_write_pcb();
 		_tfs_write_fat();
+		_tfs_write_bitmap();
+		TFSDiskInputOutput.tfs_dio_discard_blocks(pcb_pointer_free, pcb_size_fs - pcb_pointer_free);
 
-		// initialize the root directory
+		// initialize the root directory, nothing known about the old one holds any more
 
-		byte[] block = new byte[BLOCK_SIZE];
+		dentries.clear();
+		dir_indexes.clear();
+		byte[] block = new byte[pcb_block_size];
 		_tfs_put_int_block(block, 0, 0);  // block offset 0; no_entries 0
 		_tfs_write_block(pcb_pointer_root, block);
 		
@@ -149,13 +265,46 @@ public class TFSFileSystem
 
 	public static int tfs_mount()
 	{
-		//if the file system is already mounted or is not opened return an error
-		if(fs_mounted || !fs_opened)
+		return tfs_mount(TFSDiskInputOutput.tfs_dio_get_mode());
+	}
+
+	//dio_mode selects the disk backend (TFSDiskInputOutput.DIO_RAF, DIO_MMAP or DIO_MEMORY)
+	public static int tfs_mount(int dio_mode)
+	{
+		//if the file system is already mounted return an error
+		if(fs_mounted)
+			return -1;
+		//Open the disk file, or reopen it if a different backend was asked for
+		if(_tfs_open_disk(dio_mode, false, 0) < 0)
+			return -1;
+		//Find the block size the disk was made with and read PCB from disk into memory
+		//A fresh RAM disk (or a foreign file) holds no TFS file system
+		if(_tfs_probe_pcb() < 0)
 			return -1;
-		//Read PCB from disk into memory
-		_tfs_read_pcb();
+		//Directories may have changed since they were last cached
+		dentries.clear();
+		dir_indexes.clear();
 		//Read FAT from disk into memory
+		fat = new int[pcb_size_fs];
 		_tfs_read_fat();
+		fat_dirty.clear();
+		fat_bytes_last_sync = fat_bytes_written = 0;
+		//Free blocks hold nothing worth reading
+		//They were released or zeroed, or not, when they were freed; mounting does nothing to them on the disk
+		if(pcb_allocator == ALLOC_BITMAP) {
+			_tfs_read_bitmap();
+			BitSet bits = free_space.bits();
+			for(int block_no = bits.nextSetBit(0); block_no >= 0; ) {
+				int end = bits.nextClearBit(block_no);
+				TFSDiskInputOutput.tfs_dio_forget_blocks(block_no, end - block_no);
+				block_no = bits.nextSetBit(end);
+			}
+		}
+		else {
+			free_space = null;
+			for(int block_no = pcb_pointer_free; block_no != -1; block_no = fat[block_no])
+				TFSDiskInputOutput.tfs_dio_forget_blocks(block_no, 1);
+		}
 		//Set fs_mounted to true
 		fs_mounted = true;
 		System.out.println("mount successful!");
@@ -182,11 +331,17 @@ public class TFSFileSystem
 		//If the file system is not opened or not mounted return an error
 		if(!fs_opened || !fs_mounted)
 			return -1;
+		//Give the appends still in memory their blocks
+		_tfs_flush_all();
 		//Read PCB from memory back into disk
 		_tfs_write_pcb();
-		//Read FAT from memory back into disk
+		//Read FAT from memory back into disk, only the blocks that changed
 		_tfs_write_fat();
-		System.out.println("sync successful!");
+		//The same for the free bitmap
+		_tfs_write_bitmap();
+		//Flush the disk backend (mapped pages in DIO_MMAP mode)
+		TFSDiskInputOutput.tfs_dio_sync();
+		System.out.println("sync successful! (" + fat_bytes_last_sync + " bytes of FAT written)");
 		return 0;
 	}
 
@@ -204,9 +359,9 @@ public class TFSFileSystem
 
 		// get PCB from disk
 
-		int size_fs, size_fat, pointer_free, pointer_root;
+		int size_fs, size_fat, pointer_free, pointer_root, block_size, allocator, size_bitmap, features, dir_version;
 
- 		byte[] bblock = new byte[BLOCK_SIZE];
+ 		byte[] bblock = new byte[pcb_block_size];
 
  		TFSDiskInputOutput.tfs_dio_read_block(1, bblock);
 
@@ -216,6 +371,12 @@ public class TFSFileSystem
  		size_fat = bbuf.getInt();
  		pointer_free = bbuf.getInt();
  		pointer_root = bbuf.getInt();
+ 		bbuf.getInt();  // magic
+ 		block_size = bbuf.getInt();
+ 		allocator = bbuf.getInt();
+ 		size_bitmap = bbuf.getInt();
+ 		features = bbuf.getInt();
+ 		dir_version = bbuf.getInt();
 
 		String output = "";
 
@@ -224,6 +385,12 @@ public class TFSFileSystem
 		output += "    The size of FAT = " + size_fat + "\n";
 		output += "    The pointer to FREE = " + pointer_free + "\n";
 		output += "    The pointer to ROOT = " + pointer_root + "\n";
+		output += "    The size of a block = " + block_size + "\n";
+		output += "    The allocator = " + (allocator == ALLOC_BITMAP ? "bitmap" : "fat") + "\n";
+		output += "    The size of the bitmap = " + size_bitmap + "\n";
+		output += "    The file layout = " + ((features & FEATURE_EXTENTS) != 0 ? "extents" : "fat") + "\n";
+		output += "    The directory lookup = " + ((features & FEATURE_DIR_HASH) != 0 ? "hashed" : "linear") + "\n";
+		output += "    The directory entry format = " + (dir_version == 0 ? 1 : dir_version) + "\n";
 
 		// get FAT from disk
 
@@ -272,6 +439,13 @@ public class TFSFileSystem
 		output += "    The size of FAT = " + pcb_size_fat + "\n";
 		output += "    The pointer to FREE = " + pcb_pointer_free + "\n";
 		output += "    The pointer to ROOT = " + pcb_pointer_root + "\n";
+		output += "    The size of a block = " + pcb_block_size + "\n";
+		output += "    The allocator = " + (pcb_allocator == ALLOC_BITMAP ? "bitmap" : "fat") + "\n";
+		output += "    The size of the bitmap = " + pcb_size_bitmap + "\n";
+		output += "    The file layout = " + ((pcb_features & FEATURE_EXTENTS) != 0 ? "extents" : "fat") + "\n";
+		output += "    The directory lookup = " + ((pcb_features & FEATURE_DIR_HASH) != 0 ? "hashed" : "linear") + "\n";
+		output += "    The directory entry format = " + pcb_dir_format + " (" + dir_format.int_size * 8 + "-bit fields"
+				+ (dir_format.packed ? ", packed" : "") + ")\n";
 
 		//Add FAT info
 		output += "File Allocation Table:\n";
@@ -285,12 +459,143 @@ public class TFSFileSystem
 		output += "    FAT[fat.length-3] = " + fat[fat.length-3] + "\n";
 		output += "    FAT[fat.length-2] = " + fat[fat.length-2] + "\n";
 		output += "    FAT[fat.length-1] = " + fat[fat.length-1] + "\n";
+		output += "    FAT blocks dirty = " + fat_dirty.cardinality() + "\n";
+		output += "    FAT bytes written by the last sync = " + fat_bytes_last_sync + "\n";
+		output += "    FAT bytes written since mount = " + fat_bytes_written + "\n";
+
+		//Add free bitmap info
+		if (pcb_allocator == ALLOC_BITMAP) {
+			output += "Free Space Bitmap:\n";
+			output += "    Free blocks = " + free_space.free_blocks() + "\n";
+			output += "    Free runs = " + free_space.run_count() + "\n";
+			output += "    Largest free run = " + free_space.largest_run() + "\n";
+			output += "    Bitmap blocks dirty = " + bitmap_dirty.cardinality() + "\n";
+			output += "    Blocks reserved for appends in memory = " + reserved_blocks + "\n";
+			output += "    Bytes of appends in memory = " + dirty_bytes + " (limit " + dirty_limit + ")\n";
+		}
 
 		// return the result
 		return output;
 	}
 
 
+	/*
+	 * defragment mounted FS
+	 * every file whose blocks are not one run is copied into a run of free blocks near its directory,
+	 * one file at a time, so the FS stays usable between files; directories are left where they are
+	 * max_files bounds the files moved (0 for no bound), bytes_per_second the copying (0 for no limit)
+	 * returns the fragmentation before and after, null if the FS is not mounted
+	 */
+
+	public static String tfs_defrag(int max_files, long bytes_per_second)
+	{
+		// return if the disk file is not mounted yet
+		if (!fs_mounted)
+			return null;
+
+		//Appends in memory get their blocks first, so every file is complete on disk
+		_tfs_flush_all();
+
+		//Every file in the FS, found by walking the directories from the root
+		ArrayList<TFSDentryCache.Dentry> files = new ArrayList<TFSDentryCache.Dentry>();
+		_tfs_find_files(pcb_pointer_root, files);
+
+		//The FAT list cannot find runs, so its free blocks are looked at as runs for the pass
+		TFSFreeSpace space = free_space;
+		int[] free_prev = null;
+		if (pcb_allocator != ALLOC_BITMAP) {
+			BitSet free = new BitSet(pcb_size_fs);
+			free_prev = new int[pcb_size_fs];
+			for (int block_no = pcb_pointer_free, prev = -1; block_no != -1; prev = block_no, block_no = fat[block_no]) {
+				free.set(block_no);
+				free_prev[block_no] = prev;
+			}
+			space = new TFSFreeSpace(pcb_size_fs, free);
+		}
+
+		String output = "Before:\n" + _tfs_defrag_report(files, space);
+
+		int moved = 0;
+		int skipped = 0;
+		long blocks_moved = 0;
+		long started = System.nanoTime();
+		for (TFSDentryCache.Dentry d : files) {
+			if (max_files > 0 && moved == max_files)
+				break;
+			int result = _tfs_defrag_file(d, space, free_prev, bytes_per_second, started, blocks_moved);
+			if (result < 0)
+				skipped++;
+			else if (result > 0) {
+				moved++;
+				blocks_moved += result;
+			}
+			if (Thread.currentThread().isInterrupted())
+				break;
+		}
+
+		output += "Moved " + moved + " files (" + blocks_moved + " blocks)";
+		if (skipped > 0)
+			output += ", " + skipped + " left as they were (no free run long enough)";
+		output += "\nAfter:\n" + _tfs_defrag_report(files, space);
+		return output;
+	}
+
+
+	/*
+	 * convert unmounted FS to the current directory entry format
+	 * every directory is rewritten in DIR_FORMAT into new blocks, children before their parents, so the
+	 * new tree is whole on disk before one PCB write switches the root and the format over to it;
+	 * only then are the old directory blocks freed. Files are not touched.
+	 * returns -1 if the FS is mounted, cannot be mounted, or has no room for the new directories
+	 */
+
+	public static int tfs_convert(int dio_mode)
+	{
+		if (fs_mounted)
+			return -1;
+		if (tfs_mount(dio_mode) < 0)
+			return -1;
+		if (pcb_dir_format == DIR_FORMAT) {
+			tfs_umount();
+			return 0;
+		}
+
+		//Nothing is open on an unmounted FS, and directory block numbers are about to change
+		for (int fd = 0; fd < FDT_SIZE; fd++)
+			if (!fdt_is_free[fd])
+				_tfs_free_fdt(fd);
+
+		TFSDirFormat old_format = dir_format;
+		TFSDirFormat new_format = TFSDirFormat.of(DIR_FORMAT);
+		ArrayList<Integer> old_block_nos = new ArrayList<Integer>();
+		ArrayList<Integer> new_block_nos = new ArrayList<Integer>();
+		int root_block_no = _tfs_convert_dir(pcb_pointer_root, old_format, new_format, old_block_nos, new_block_nos);
+		if (root_block_no < 0) {
+			for (int block_no : new_block_nos)
+				_tfs_return_block_fat(block_no);
+			tfs_umount();
+			return -1;
+		}
+
+		//The new directories and the blocks they use are on disk before the PCB points at them,
+		//and the PCB is on disk before any old directory block is freed and can be reused
+		_tfs_write_fat();
+		_tfs_write_bitmap();
+		TFSDiskInputOutput.tfs_dio_sync();
+		pcb_pointer_root = root_block_no;
+		_tfs_set_dir_format(DIR_FORMAT);
+		_tfs_write_pcb();
+		TFSDiskInputOutput.tfs_dio_sync();
+
+		for (int block_no : old_block_nos)
+			_tfs_return_block_fat(block_no);
+		dentries.clear();
+		dir_indexes.clear();
+		System.out.println("convert successful! (" + new_block_nos.size() + " directory blocks written)");
+		return tfs_umount();
+	}
+
+
 	public static void tfs_exit()
 	{
 		tfs_umount();
@@ -375,7 +680,7 @@ public class TFSFileSystem
 			return fd;
 		
 		//File is not already open -> create an FDT entry for it
-		fd = _tfs_open_fd(name, nlength, fbn[0], block_no, size[0], is_directory[0]);
+		fd = _tfs_open_fd(file_name, file_name.length, fbn[0], block_no, size[0], is_directory[0]);
 		
 		//Return fd if this process is successful
 		if(fd > -1) {
@@ -390,7 +695,7 @@ public class TFSFileSystem
 	//Get the size of the root directory
 	private static int _tfs_get_root_size()
 	{
-		byte[] root = new byte[BLOCK_SIZE];
+		byte[] root = new byte[pcb_block_size];
 		_tfs_read_block(pcb_pointer_root, root);
 		return _tfs_get_int_block(root, 0);
 	}
@@ -398,13 +703,13 @@ public class TFSFileSystem
 	//Public access for size given fd
 	public static int tfs_get_size(int fd)
 	{
-		return fdt_size[fd];
+		return fdt_size[fd] + fdt_no_pending[fd];
 	}
 	
 	//Public access for no_entries given fd
 	public static int tfs_get_no_entries(int fd)
 	{
-		byte[] block = new byte[BLOCK_SIZE];
+		byte[] block = new byte[pcb_block_size];
 		_tfs_read_block(fdt_first_block_no[fd], block);
 		return _tfs_get_int_block(block, 0);
 	}
@@ -420,45 +725,125 @@ public class TFSFileSystem
 		//Get original filename
 		byte[] original_name = _tfs_extract_filename(original_path_name);
 
-		//Change name in FDT
-		fdt_name[fd] = new_name;
-		byte[] block = new byte[BLOCK_SIZE];
 		//Get the block with entry in it
 		int[] entry_block_no = new int[1];
 		int entry_no = _tfs_get_entry_location(fdt_parent_block_no[fd], original_name, entry_block_no);
 		//Read the entry block int memory
+		byte[] block = new byte[pcb_block_size];
 		_tfs_read_block(entry_block_no[0], block);
-		//Change the name
-		_tfs_put_bytes_block(block, entry_no * DIR_ENTRY_SIZE + 5, new_name, new_name.length);
+		//Change the name in a copy, a longer name may not fit in a packed block
+		byte[] renamed = block.clone();
+		if (!dir_format.rename(renamed, entry_no, new_name, new_name.length)) {
+			//The entry then moves to the end of the directory under its new name
+			int offset = dir_format.entry(block, entry_no);
+			if (_tfs_create_entry_dir(fdt_parent_block_no[fd], new_name, (byte)new_name.length, block[offset + dir_format.is_dir],
+					_tfs_get_int_block(block, offset + dir_format.fbn), _tfs_get_int_block(block, offset + dir_format.size)) < 0)
+				return -1;
+			_tfs_delete_entry_dir(fdt_parent_block_no[fd], original_name, (byte)original_name.length);
+			fdt_name[fd] = new_name;
+			fdt_nlength[fd] = new_name.length;
+			return 0;
+		}
+		//A hashed directory indexes the entry under its new name first, which may need a block
+		TFSDirIndex.Directory dir = _tfs_get_dir_index(fdt_parent_block_no[fd]);
+		if (dir.hash_block_no != 0) {
+			if (_tfs_hash_insert(dir, TFSDirHash.hash(new String(new_name).trim()), entry_block_no[0], entry_no) < 0)
+				return -1;
+			_tfs_hash_move(dir, TFSDirHash.hash(new String(original_name).trim()), entry_block_no[0], entry_no, -1, 0);
+		}
+
+		//Change name in FDT
+		fdt_name[fd] = new_name;
+		fdt_nlength[fd] = new_name.length;
 		//Write block back to disk
-		_tfs_write_block(entry_block_no[0], block);
+		_tfs_write_block(entry_block_no[0], renamed);
+		//Neither name means what it did before, and paths through the old name are gone
+		dentries.remove(fdt_parent_block_no[fd], new String(original_name).trim());
+		dentries.remove(fdt_parent_block_no[fd], new String(new_name).trim());
+		int[] location = dir.slots.remove(new String(original_name).trim());
+		if (location != null)
+			dir.slots.put(new String(new_name).trim(), location);
 		return 0;
 	}
 
 	//Read blength bytes from file found at fd into buf
 	public static int tfs_read(int fd, byte[] buf, int blength)
 	{
+		if(_tfs_flush_fd(fd) < 0)
+			return -1;
 		return _tfs_read_bytes_fd(fd, buf, blength);
 	}
 
 	//Write blength bytes from buf into file found at fd
+	//Appends are kept in memory and get their blocks when the file is flushed
 	public static int tfs_write(int fd, byte[] buf, int blength, byte[] path)
 	{
+		//The directory entry has to be able to hold the new size, version 1 entries stop at 65535
+		if(fd >= 0 && fd < FDT_SIZE && !dir_format.fits((long)fdt_file_pointer[fd] + blength))
+			return -1;
+		if(_tfs_delay_append_fd(fd, buf, blength)) {
+			_tfs_update_dir_sizes(path, blength);
+			return blength;
+		}
+		if(_tfs_flush_fd(fd) < 0)
+			return -1;
+		int old_size = fdt_size[fd];
 		int bytes_written = _tfs_write_bytes_fd(fd, buf, blength);
-		if(bytes_written > 0)
-			_tfs_update_dir_sizes(path, bytes_written);
+		//Parent directories only grow by what the file grew, not by overwritten bytes
+		if(bytes_written > 0 && fdt_size[fd] > old_size)
+			_tfs_update_dir_sizes(path, fdt_size[fd] - old_size);
 		return bytes_written;
 	}
 
 
 	public static int tfs_seek(int fd, int position)
 	{
+		//Seeking to the end keeps appending; anywhere else the data in memory has to be on disk first
+		if(fd >= 0 && fd < FDT_SIZE && fdt_no_pending[fd] > 0) {
+			if(position == fdt_size[fd] + fdt_no_pending[fd]) {
+				fdt_file_pointer[fd] = position;
+				return position;
+			}
+			if(_tfs_flush_fd(fd) < 0)
+				return -1;
+		}
 		return _tfs_seek_fd(fd, position);
 	}
 
+	//Give the appends to fd kept in memory their blocks and write them
+	public static int tfs_flush(int fd)
+	{
+		if(fd < 0 || fd > FDT_SIZE-1)
+			return -1;
+		return _tfs_flush_fd(fd);
+	}
+
+	//Give the file at fd the blocks to hold its first bytes bytes now, in as few runs as the allocator finds,
+	//so writes up to there only overwrite blocks; the size of the file does not change
+	public static int tfs_reserve(int fd, int bytes)
+	{
+		if(fd < 0 || fd > FDT_SIZE-1 || fdt_is_free[fd] || fdt_is_directory[fd] || bytes < 0)
+			return -1;
+		if(_tfs_flush_fd(fd) < 0)
+			return -1;
+		return _tfs_reserve_fd(fd, bytes);
+	}
+
+	//Set how many bytes of appends may be kept in memory across all files, 0 writes appends through
+	public static int tfs_set_dirty_limit(long bytes)
+	{
+		if(bytes < 0)
+			return -1;
+		dirty_limit = bytes;
+		if(dirty_bytes > dirty_limit)
+			_tfs_flush_all();
+		return 0;
+	}
+
 	//Close given file
 	public static void tfs_close(int fd)
 	{
+		_tfs_flush_fd(fd);
 		_tfs_close_fd(fd);
 		return;
 	}
@@ -500,8 +885,13 @@ public class TFSFileSystem
  		//Extract the filename from the full path
  		byte[] file_name = _tfs_extract_filename(name);
  		
+ 		if(file_name.length > MAX_NAME_LENGTH)
+ 			return -1;
+ 		
  		//open the parent directory
  		int parent_fd = tfs_open(parent_dir_path, parent_dir_path.length);
+ 		if( parent_fd < 0)
+ 			return -1;
  		
  		//Check if directory
  		if(fdt_is_directory[parent_fd] == false)
@@ -509,18 +899,19 @@ public class TFSFileSystem
  			System.out.println(parent_path_s + " is not a directory!");
  			return -1;
  		}
- 		if( parent_fd < 0)
- 			return -1;
 
  		
 		//Now we can create the file block
  		int newBlockNo;
-		// Find a free block using FAT
- 		newBlockNo = _tfs_get_block_fat();
+		// Find a free block using FAT, near the parent directory
+ 		newBlockNo = _tfs_get_block_fat(fdt_first_block_no[parent_fd]);
  		if(newBlockNo < 0) {
  			System.out.println("Disk is full!");
  			return -1;
  		}
+ 		//With extents the first block is the extent block of the file, which starts with no extents
+ 		if((pcb_features & FEATURE_EXTENTS) != 0)
+ 			_tfs_write_block(newBlockNo, new byte[pcb_block_size]);
  		//Create directory entry in parent directory for this new file block
  		//Also open the file to get the fd
  		if(_tfs_create_entry_dir(fdt_first_block_no[parent_fd], file_name, (byte)file_name.length,
@@ -572,7 +963,10 @@ public class TFSFileSystem
 				//If the file name doesn't already exist in the directory we can proceed with copying
 
 				//Read all of the files data blocks into memory
+				if(_tfs_flush_fd(source_fd) < 0)
+					return -1;
 				byte[] file_data = new byte[fdt_size[source_fd]];
+				tfs_seek(source_fd, 0);
 				tfs_read(source_fd, file_data, fdt_size[source_fd]);
 				
 				//Create file in destination directory and get fd
@@ -583,6 +977,9 @@ public class TFSFileSystem
 					System.out.println("File could not be created in destination directory!");
 					return -1;
 				}
+				//The final size is known, so all the blocks are taken at once before any data is written
+				//If they cannot be, the write below finds the disk full as well
+				tfs_reserve(new_file_fd, file_data.length);
 				//We need to update its entry information in the parent block
 				 _tfs_update_entry_dir(fdt_parent_block_no[new_file_fd], fdt_name[source_fd], (byte)fdt_nlength[source_fd],
 						 fdt_is_directory[source_fd], fdt_first_block_no[new_file_fd], fdt_size[source_fd]);
@@ -603,7 +1000,16 @@ public class TFSFileSystem
 	
 
 	//Delete given file
+	//All block writes are queued and waited for once at the end
 	public static int tfs_delete(byte[] name, int nlength)
+	{
+		_tfs_begin_batch();
+		int result = _tfs_delete(name, nlength);
+		_tfs_end_batch();
+		return result;
+	}
+
+	private static int _tfs_delete(byte[] name, int nlength)
 	{
 		//To delete a file we must erase its directory entry and
 		//return any data blocks to the list of free blocks
@@ -628,13 +1034,14 @@ public class TFSFileSystem
 		
 		//If the file is a directory then use tfs_delete_dir
 		if(fdt_is_directory[fd])
-			tfs_delete_dir(name, nlength);
+			return tfs_delete_dir(name, nlength);
 		
-		//Release all blocks allocated to entry
+		//Release all blocks allocated to entry; appends still in memory never get any
+		int pending = _tfs_drop_pending_fd(fd);
 		_tfs_return_blocks_fd(fd);
 		
 		//Update parent directories sizes
-		_tfs_update_dir_sizes(name, fdt_size[fd] * -1);
+		_tfs_update_dir_sizes(name, (fdt_size[fd] + pending) * -1);
 		
 		//Delete the entry for the file
 		//_tfs_delete_entry_dir does not take the full path
@@ -684,8 +1091,13 @@ public class TFSFileSystem
  		//Extract the directory name from the full path
  		byte[] file_name = _tfs_extract_filename(name);
  		
+ 		if(file_name.length > MAX_NAME_LENGTH)
+ 			return -1;
+ 		
  		//open the parent directory
  		int parent_fd = tfs_open(parent_dir_path, parent_dir_path.length);
+ 		if( parent_fd < 0)
+ 			return -1;
  		
  		//Check if directory
  		if(fdt_is_directory[parent_fd] == false)
@@ -693,18 +1105,19 @@ public class TFSFileSystem
  			System.out.println(parent_path_s + " is not a directory!");
  			return -1;
  		}
- 		if( parent_fd < 0)
- 			return -1;
 
  		
 		//Now we can create the directory block
  		int newBlockNo;
-		// Find a free block using FAT
- 		newBlockNo = _tfs_get_block_fat();
+		// Find a free block using FAT, near the parent directory
+ 		newBlockNo = _tfs_get_block_fat(fdt_first_block_no[parent_fd]);
  		if(newBlockNo < 0) {
  			System.out.println("Disk is full!");
  			return -1;
  		}
+ 		//A free block may hold anything, so start the directory with no entries
+ 		_tfs_write_block(newBlockNo, new byte[pcb_block_size]);
+ 		dir_indexes.remove(newBlockNo);
  		//Create directory entry in parent directory for this new directory block
  		//Also open the directory to get the fd
  		if(_tfs_create_entry_dir(fdt_first_block_no[parent_fd], file_name, (byte)file_name.length,
@@ -723,7 +1136,16 @@ public class TFSFileSystem
 	//Instructions said to only delete if it is an empty directory
 	//However, this function will delete a directory that is not empty
 	//by first deleting its contents, and then the directory itself
+	//All block writes are queued and waited for once at the end
 	public static int tfs_delete_dir(byte[] name, int nlength)
+	{
+		_tfs_begin_batch();
+		int result = _tfs_delete_dir(name, nlength);
+		_tfs_end_batch();
+		return result;
+	}
+
+	private static int _tfs_delete_dir(byte[] name, int nlength)
 	{
 		//Delete given directory
 		//When deleting a directory we must delete all files/directories contained in directory
@@ -737,7 +1159,7 @@ public class TFSFileSystem
 		}
 		
 		//Read the directory block into memory
-		byte[] block = new byte[BLOCK_SIZE];
+		byte[] block = new byte[pcb_block_size];
 		_tfs_read_block(fdt_first_block_no[fd], block);
 		//Get number of entries
 		int no_entries;
@@ -777,8 +1199,10 @@ public class TFSFileSystem
 			}
 		}
 		
-		//We need to free all blocks allocated to the directory
+		//We need to free all blocks allocated to the directory, and to its hash index
+		_tfs_hash_free(fdt_first_block_no[fd]);
 		_tfs_return_blocks_fd(fd);
+		dir_indexes.remove(fdt_first_block_no[fd]);
 		
 		//Update parent directories sizes
 		_tfs_update_dir_sizes(name, fdt_size[fd] * -1);
@@ -786,8 +1210,8 @@ public class TFSFileSystem
 		//Now we can delete the entry for the directory
 		_tfs_delete_entry_dir(fdt_parent_block_no[fd], name, (byte)nlength);
 		
-		//Close file
- 		_tfs_close_fd(fd);
+		//Free FD
+ 		_tfs_free_fdt(fd);
 		
 		return 0;
 	}
@@ -809,7 +1233,7 @@ public class TFSFileSystem
  		// get the number of entries
  		int no_entries;
  		//Empty block for directory block to be read into
- 		byte[] block = new byte[BLOCK_SIZE];
+ 		byte[] block = new byte[pcb_block_size];
  		
  		//Read block located at first block # of directory into empty block
  		_tfs_read_block(fdt_first_block_no[fd], block);
@@ -822,33 +1246,29 @@ public class TFSFileSystem
  			return 0;
  		}
 
- 		// get the number of blocks allocated to the directory
- 		int no_blocks;
- 		if (no_entries == 0)
- 			no_blocks = 1;
- 		else {
- 			no_blocks = no_entries / MAX_ENTRY_DIR;
- 			if (no_entries % MAX_ENTRY_DIR != 0)
- 				no_blocks++;
- 		}
-
- 		// read entries
+ 		// read entries, as many from each block as the directory format keeps there
  		int block_no = fdt_first_block_no[fd];
  		byte[] name_tmp = new byte[16];
 
- 		for (int i = 0; i < no_entries; ) {
- 			if (i % MAX_ENTRY_DIR == 0)
+ 		for (int i = 0, b = 0; i < no_entries; b++) {
+ 			if (b > 0) {
+ 				block_no = fat[block_no];
  				_tfs_read_block(block_no, block);
- 			for (int j = 0; j < MAX_ENTRY_DIR && i < no_entries; j++, i++) {
- 				is_directory[i] = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + IS_DIR);
- 				name_tmp = _tfs_get_bytes_block(block, DIR_ENTRY_SIZE * j + NAME, 16);
+ 			}
+ 			int count = dir_format.entries(block, b, no_entries);
+ 			int offset = dir_format.entry(block, 0);
+ 			for (int j = 0; j < count && i < no_entries; j++, i++, offset = dir_format.next(block, offset)) {
+ 				is_directory[i] = _tfs_get_byte_block(block, offset + dir_format.is_dir);
+ 				name_tmp = dir_format.get_name(block, offset);
  				for (int k = 0; k < 16; k++)
  					name[i][k] = name_tmp[k];
- 				nlength[i] = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + NLENGTH);
- 				reserved1 = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + RESERVED1);
- 				reserved2 = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + RESERVED2);
- 				first_block_no[i] = _tfs_get_int_block(block, DIR_ENTRY_SIZE * j + FBN);
- 				file_size[i] = _tfs_get_int_block(block, DIR_ENTRY_SIZE * j + SIZE);
+ 				nlength[i] = _tfs_get_byte_block(block, offset + dir_format.nlength);
+ 				if (!dir_format.packed) {
+ 					reserved1 = _tfs_get_byte_block(block, offset + dir_format.reserved1);
+ 					reserved2 = _tfs_get_byte_block(block, offset + dir_format.reserved2);
+ 				}
+ 				first_block_no[i] = _tfs_get_int_block(block, offset + dir_format.fbn);
+ 				file_size[i] = _tfs_get_int_block(block, offset + dir_format.size);
  			}
  		}
 
@@ -868,9 +1288,37 @@ public class TFSFileSystem
 	 * DISK-related utilities
 	 */
 
+	//Open the disk file with the given backend, creating it if it does not exist and create is set
+	//If it is already open with another backend it is closed and reopened
+	//If size is not 0 the disk is (re)created with size blocks
+	private static int _tfs_open_disk(int dio_mode, boolean create, int size)
+	{
+		if (fs_opened && TFSDiskInputOutput.tfs_dio_get_mode() == dio_mode && size == 0)
+			return 0;
+		if (fs_opened)
+			TFSDiskInputOutput.tfs_dio_close();
+		fs_opened = false;
+		if (size != 0 || TFSDiskInputOutput.tfs_dio_open(DISK_FILE.getBytes(), DISK_FILE.length(), dio_mode) < 0) {
+			if (!create)
+				return -1;
+			if (TFSDiskInputOutput.tfs_dio_create(DISK_FILE.getBytes(), DISK_FILE.length(),
+					size != 0 ? size : DISK_FILE_SIZE, dio_mode) < 0)
+				return -1;
+		}
+		fs_opened = true;
+		return 0;
+	}
+
  	private static int _tfs_read_block(int block_no, byte buf[])
  	{
  		//System.out.println("Reading block" + block_no + " into memory!");
+ 		if (io_batch_depth > 0) {
+ 			byte[][] pending = TFSDiskInputOutput.tfs_dio_get_queue().pending(new int[] { block_no });
+ 			if (pending != null) {
+ 				System.arraycopy(pending[0], 0, buf, 0, pcb_block_size);
+ 				return 0;
+ 			}
+ 		}
  		return TFSDiskInputOutput.tfs_dio_read_block(block_no, buf);
  	}
 
@@ -878,10 +1326,61 @@ public class TFSFileSystem
  	private static int _tfs_write_block(int block_no, byte buf[])
  	{
  		 //System.out.println("Writing block: " + block_no + "back to disk!");
+ 		if (io_batch_depth > 0) {
+ 			TFSDiskInputOutput.tfs_dio_get_queue().submit_write(block_no, buf);
+ 			return 0;
+ 		}
  		return TFSDiskInputOutput.tfs_dio_write_block(block_no, buf);
  	}
 
 
+ 	//Read the blocks in block_nos into buf, adjacent blocks in one disk request
+ 	private static int _tfs_read_blocks(int[] block_nos, ByteBuffer buf)
+ 	{
+ 		//In a batch the blocks with writes still queued are read as those writes, the rest in one request as usual
+ 		byte[][] pending = io_batch_depth > 0 ? TFSDiskInputOutput.tfs_dio_get_queue().pending(block_nos) : null;
+ 		int start = buf.position();
+ 		int result = TFSDiskInputOutput.tfs_dio_read_blocks(block_nos, buf);
+ 		if (result < 0 || pending == null)
+ 			return result;
+ 		for (int i = 0; i < block_nos.length; i++)
+ 			if (pending[i] != null)
+ 				buf.put(start + i * pcb_block_size, pending[i]);
+ 		return result;
+ 	}
+
+
+ 	//Write buf into the blocks in block_nos, adjacent blocks in one disk request
+ 	private static int _tfs_write_blocks(int[] block_nos, ByteBuffer buf)
+ 	{
+ 		if (io_batch_depth > 0) {
+ 			byte[] block = new byte[pcb_block_size];
+ 			for (int block_no : block_nos) {
+ 				buf.get(block);
+ 				_tfs_write_block(block_no, block);
+ 			}
+ 			return 0;
+ 		}
+ 		return TFSDiskInputOutput.tfs_dio_write_blocks(block_nos, buf);
+ 	}
+
+
+ 	//From here until the matching _tfs_end_batch, block writes and discards are only queued
+ 	//and reads see the queued writes and discards without waiting for them
+ 	private static void _tfs_begin_batch()
+ 	{
+ 		io_batch_depth++;
+ 	}
+
+
+ 	//Wait once for everything queued since the outermost _tfs_begin_batch
+ 	private static void _tfs_end_batch()
+ 	{
+ 		if (--io_batch_depth == 0)
+ 			TFSDiskInputOutput.tfs_dio_get_queue().drain();
+ 	}
+
+
  	//-------------------------------------------------------------------------
  	/*
  	 * FDT-related utilities
@@ -913,6 +1412,11 @@ public class TFSFileSystem
  		fdt_first_block_no[fd] = first_block_no;
  		fdt_parent_block_no[fd] = parent_block_no;
  		fdt_size[fd] = file_size;
+ 		fdt_block_map[fd] = null;
+ 		fdt_extents[fd] = null;
+ 		fdt_ra_next[fd] = 0;
+ 		fdt_ra_window[fd] = 0;
+ 		fdt_ra_end[fd] = 0;
  		if( is_directory == 0)
  		{
  			fdt_is_directory[fd] = true;
@@ -926,13 +1430,12 @@ public class TFSFileSystem
  	}
 
  	//Move the file pointer to offset in file fd
+ 	//offset may be the size of the file, which is where appends go
  	private static int _tfs_seek_fd(int fd, int offset)
  	{
  		if(fd < 0 || fd > FDT_SIZE-1)
  			return -1;
- 		if(offset == 0)
- 			return fdt_file_pointer[fd];
- 		if (offset < 0 || offset > fdt_size[fd]-1)
+ 		if (offset < 0 || offset > fdt_size[fd])
  			return -1;
  		
  		//Change file pointer
@@ -970,9 +1473,91 @@ public class TFSFileSystem
 		fdt_nlength[fd] = 0;
 		fdt_parent_block_no[fd] = -1;
 		fdt_file_pointer[fd] = 0;
+		fdt_block_map[fd] = null;
+		fdt_extents[fd] = null;
+ 	}
+
+ 	//Keep length bytes of buf appended to fd in memory instead of writing them
+ 	//Returns false if they have to be written now: not an append, no bitmap to reserve blocks from,
+ 	//more than the dirty limit, or not enough free blocks left to reserve
+ 	private static boolean _tfs_delay_append_fd(int fd, byte[] buf, int length)
+ 	{
+ 		if (fd < 0 || fd > FDT_SIZE-1 || length <= 0)
+ 			return false;
+ 		if (pcb_allocator != ALLOC_BITMAP || fdt_is_directory[fd] || length > dirty_limit)
+ 			return false;
+ 		int end = fdt_size[fd] + fdt_no_pending[fd];
+ 		if (fdt_file_pointer[fd] != end || (long)end + length > Integer.MAX_VALUE)
+ 			return false;
+
+ 		// make room under the dirty limit, largest files first
+
+ 		while (dirty_bytes + length > dirty_limit) {
+ 			int largest = 0;
+ 			for (int i = 1; i < FDT_SIZE; i++)
+ 				if (fdt_no_pending[i] > fdt_no_pending[largest])
+ 					largest = i;
+ 			if (_tfs_flush_fd(largest) < 0)
+ 				return false;
+ 		}
+
+ 		// set aside the blocks the data will need, and one for an extent block
+
+ 		long need = ((long)end + length + pcb_block_size - 1) / pcb_block_size - _tfs_get_no_blocks_fd(fd);
+ 		if (_tfs_is_extent_fd(fd))
+ 			need++;
+ 		need = Math.max(0, need);
+ 		if (free_space.free_blocks() - reserved_blocks + fdt_reserved[fd] < need)
+ 			return false;
+ 		reserved_blocks += need - fdt_reserved[fd];
+ 		fdt_reserved[fd] = (int)need;
+
+ 		if (fdt_pending[fd] == null)
+ 			fdt_pending[fd] = new byte[Math.max(length, pcb_block_size)];
+ 		else if (fdt_no_pending[fd] + length > fdt_pending[fd].length)
+ 			fdt_pending[fd] = Arrays.copyOf(fdt_pending[fd], Math.max(fdt_no_pending[fd] + length, fdt_pending[fd].length * 2));
+ 		System.arraycopy(buf, 0, fdt_pending[fd], fdt_no_pending[fd], length);
+ 		fdt_no_pending[fd] += length;
+ 		dirty_bytes += length;
+ 		fdt_file_pointer[fd] += length;
+ 		return true;
+ 	}
+
+ 	//Write the appends to fd kept in memory, all their blocks taken in one go
+ 	private static int _tfs_flush_fd(int fd)
+ 	{
+ 		if (fd < 0 || fd > FDT_SIZE-1 || fdt_no_pending[fd] == 0)
+ 			return 0;
+
+ 		byte[] data = fdt_pending[fd];
+ 		int length = _tfs_drop_pending_fd(fd);
+ 		int file_pointer = fdt_file_pointer[fd];
+ 		fdt_file_pointer[fd] = fdt_size[fd];
+ 		int result = _tfs_write_bytes_fd(fd, data, length);
+ 		fdt_file_pointer[fd] = file_pointer;
+ 		return result < 0 ? -1 : 0;
+ 	}
+
+ 	//Forget the appends to fd kept in memory and release their reservation
+ 	//Returns how many bytes there were
+ 	private static int _tfs_drop_pending_fd(int fd)
+ 	{
+ 		int length = fdt_no_pending[fd];
+ 		dirty_bytes -= length;
+ 		reserved_blocks -= fdt_reserved[fd];
+ 		fdt_pending[fd] = null;
+ 		fdt_no_pending[fd] = 0;
+ 		fdt_reserved[fd] = 0;
+ 		return length;
+ 	}
+
+ 	private static void _tfs_flush_all()
+ 	{
+ 		for (int fd = 0; fd < FDT_SIZE; fd++)
+ 			_tfs_flush_fd(fd);
  	}
 
- 	private static int _tfs_read_bytes_fd(int fd, byte[] buf, int length)
+	private static int _tfs_read_bytes_fd(int fd, byte[] buf, int length)
  	{
  		if(fd < 0 || fd > FDT_SIZE-1)
  			return -1;
@@ -981,42 +1566,69 @@ public class TFSFileSystem
 
 		// compute the actual length to read
 
-	 	if (length > fdt_size[fd]-1 - fdt_file_pointer[fd] + 1)
- 			length = fdt_size[fd]-1 - fdt_file_pointer[fd] + 1;
+	 	if (length > fdt_size[fd] - fdt_file_pointer[fd])
+ 			length = fdt_size[fd] - fdt_file_pointer[fd];
+	 	if (length <= 0)
+	 		return 0;
 
  		// compute the number of blocks that file uses from the file pointer
 
  		int no_blocks = 0;
  		int start, end;
 
- 		start = fdt_file_pointer[fd] / BLOCK_SIZE;
- 		end = (fdt_file_pointer[fd] + length - 1) / BLOCK_SIZE;
+ 		start = fdt_file_pointer[fd] / pcb_block_size;
+ 		end = (fdt_file_pointer[fd] + length - 1) / pcb_block_size;
  		no_blocks = end - start + 1;
 
- 		// read all blocks into an array for the length
-
- 		int block_no;
-		byte[] tmp = new byte[no_blocks * BLOCK_SIZE];
- 		byte[] block = new byte[BLOCK_SIZE];
+ 		// read all blocks into an array for the length, contiguous blocks in one go
 
-		block_no = _tfs_get_block_no_fd(fd, fdt_file_pointer[fd]);
- 		for (int j = 0; j < no_blocks; j++) {
- 			_tfs_read_block(block_no, block);
- 			for (int i = 0; i < BLOCK_SIZE; i++)
- 				tmp[j * BLOCK_SIZE + i] = block[i];
- 			block_no = fat[block_no];
- 		}
+ 		int[] block_nos = _tfs_get_blocks_fd(fd, start, no_blocks);
+ 		ByteBuffer tmp = ByteBuffer.allocate(no_blocks * pcb_block_size);
+ 		if (_tfs_read_blocks(block_nos, tmp) < 0)
+ 			return -1;
 
  		// take out length bytes from the above array, and return
 
- 		int displacement = fdt_file_pointer[fd] % BLOCK_SIZE;
- 		for (int i = 0; i < length; i++)
- 			buf[i] = tmp[displacement + i];
- 		
+ 		int displacement = fdt_file_pointer[fd] % pcb_block_size;
+ 		System.arraycopy(tmp.array(), displacement, buf, 0, length);
+
+ 		// keep reading ahead of a sequential reader
+
+ 		_tfs_read_ahead_fd(fd, fdt_file_pointer[fd] == fdt_ra_next[fd], end);
+ 		fdt_file_pointer[fd] += length;
+ 		fdt_ra_next[fd] = fdt_file_pointer[fd];
 
  		return length;
  	}
 
+ 	//Called after each read of fd that ended in block last_block of the file
+ 	//While reads are sequential the blocks after it are prefetched into the block cache,
+ 	//the window doubling each time it is topped up; a random read collapses it
+ 	private static void _tfs_read_ahead_fd(int fd, boolean sequential, int last_block)
+ 	{
+ 		if (!sequential) {
+ 			fdt_ra_window[fd] = 0;
+ 			fdt_ra_end[fd] = 0;
+ 			return;
+ 		}
+ 		if (fdt_ra_window[fd] == 0)
+ 			fdt_ra_window[fd] = MIN_READ_AHEAD;
+
+ 		// still far enough ahead of the reader
+
+ 		if (fdt_ra_end[fd] > last_block + 1 + fdt_ra_window[fd] / 2)
+ 			return;
+
+ 		int file_blocks = (fdt_size[fd] + pcb_block_size - 1) / pcb_block_size;
+ 		int from = Math.max(last_block + 1, fdt_ra_end[fd]);
+ 		int to = Math.min(last_block + 1 + fdt_ra_window[fd], file_blocks);
+ 		if (from < to) {
+ 			TFSDiskInputOutput.tfs_dio_prefetch_blocks(_tfs_get_blocks_fd(fd, from, to - from));
+ 			fdt_ra_end[fd] = to;
+ 		}
+ 		fdt_ra_window[fd] = Math.min(fdt_ra_window[fd] * 2, Math.max(MAX_READ_AHEAD_SIZE / pcb_block_size, MIN_READ_AHEAD));
+ 	}
+
 
  	private static int _tfs_write_bytes_fd(int fd, byte[] buf, int length)
  	{
@@ -1031,59 +1643,44 @@ public class TFSFileSystem
  		int no_blocks = 0;
  		int start, end;
 
- 		start = fdt_file_pointer[fd] / BLOCK_SIZE;
- 		end = (fdt_file_pointer[fd] + length - 1) / BLOCK_SIZE;
+ 		start = fdt_file_pointer[fd] / pcb_block_size;
+ 		end = (fdt_file_pointer[fd] + length - 1) / pcb_block_size;
  		no_blocks = end - start + 1;
- 		// compute the number of blocks that the file uses from the current file pointer
 
- 		int no_use_blocks = 0;
+ 		// if more blocks are needed, then take them all at once and attach them
 
- 		start = fdt_file_pointer[fd] / BLOCK_SIZE;
- 		end = (fdt_size[fd] - 1) / BLOCK_SIZE;
- 		no_use_blocks = end - start + 1;
+ 		if (_tfs_reserve_fd(fd, fdt_file_pointer[fd] + length) < 0)
+ 			return -1;
 
- 		// if more blocks are needed, then attach them
+ 		// keep the old data around the new data in the first and the last block
 
- 		int block_no;
+ 		int[] block_nos = _tfs_get_blocks_fd(fd, start, no_blocks);
+ 		ByteBuffer tmp = ByteBuffer.allocate(no_blocks * pcb_block_size);
+ 		byte[] block = new byte[pcb_block_size];
+ 		int displacement = fdt_file_pointer[fd] % pcb_block_size;
 
- 		for (int i = 0; i < no_blocks - no_use_blocks; i++) {
- 			block_no = _tfs_get_block_fat();
- 			if (block_no < 0)
- 				return -1;  // no more space
- 			_tfs_attach_block_fat(fdt_first_block_no[fd], block_no);
+ 		if (displacement != 0) {
+ 			_tfs_read_block(block_nos[0], block);
+ 			tmp.put(0, block);
  		}
-
- 		// save old data into an array of blocks<------------------------------------------------------------
-
-		byte[] tmp = new byte[no_blocks * BLOCK_SIZE];
-		byte[] block = new byte[BLOCK_SIZE];
- 		block_no = _tfs_get_block_no_fd(fd, fdt_file_pointer[fd]);
- 		for (int i = 0; i < no_use_blocks; i++) {
- 			_tfs_read_block(block_no, block);
- 			for (int j = 0; j < BLOCK_SIZE; j++)
- 				tmp[i * BLOCK_SIZE + j] = block[j];
- 			block_no = fat[block_no];
+ 		if ((displacement + length) % pcb_block_size != 0 && fdt_file_pointer[fd] + length < fdt_size[fd]) {
+ 			_tfs_read_block(block_nos[no_blocks - 1], block);
+ 			tmp.put((no_blocks - 1) * pcb_block_size, block);
  		}
 
  		// overwrite new data into the array of blocks
 
- 		int displacement = fdt_file_pointer[fd] % BLOCK_SIZE;
+ 		tmp.put(displacement, buf, 0, length);
 
- 		for (int i = 0; i < length; i++)
- 			tmp[displacement + i] = buf[i];
+ 		// write the blocks back into the disk, contiguous blocks in one go
 
- 		// write the blocks back into the disk
+ 		if (_tfs_write_blocks(block_nos, tmp) < 0)
+ 			return -1;
 
- 		block_no = _tfs_get_block_no_fd(fd, fdt_file_pointer[fd]);
- 		for (int i = 0; i < no_blocks; i++) {
- 			for (int j = 0; j < BLOCK_SIZE; j++)
- 				block[j] = tmp[i * BLOCK_SIZE + j];
- 			_tfs_write_block(block_no, block);
- 			block_no = fat[block_no];
- 		}
- 		
-		//Update file size
-		fdt_size[fd] += length;
+		//Update file pointer and file size
+		fdt_file_pointer[fd] += length;
+		if (fdt_file_pointer[fd] > fdt_size[fd])
+			fdt_size[fd] = fdt_file_pointer[fd];
 		//Update entry
 		_tfs_update_entry_dir(fdt_parent_block_no[fd], fdt_name[fd], (byte)fdt_nlength[fd],
 				fdt_is_directory[fd], fdt_first_block_no[fd], fdt_size[fd]);
@@ -1091,46 +1688,218 @@ public class TFSFileSystem
  		return length;
  	}
  	
- 	
-
- 	//Get block number of a file given fd and offset
- 	private static int _tfs_get_block_no_fd(int fd, int offset)
+ 	//Make sure fd has the blocks to hold bytes bytes, taking the missing ones all at once
+ 	//Returns -1 if there is not enough space, and then nothing was taken
+ 	private static int _tfs_reserve_fd(int fd, int bytes)
  	{
- 		if(fd < 0 || fd > FDT_SIZE-1)
+ 		// an empty file still owns its first block
+ 		int need = (int)(((long)bytes + pcb_block_size - 1) / pcb_block_size) - _tfs_get_no_blocks_fd(fd);
+ 		if (need <= 0)
+ 			return 0;
+
+ 		int[] new_block_nos = _tfs_get_blocks_fat(need, _tfs_get_last_block_fd(fd) + 1);
+ 		if (new_block_nos == null)
  			return -1;
- 		if(offset == 0)
- 			return fdt_first_block_no[fd];
- 		if (offset < 0 || offset > fdt_size[fd]-1)
+ 		if (_tfs_attach_blocks_fd(fd, new_block_nos) < 0) {
+ 			for (int block_no : new_block_nos)
+ 				_tfs_return_block_fat(block_no);
  			return -1;
- 		
- 		int block_no = fdt_first_block_no[fd];
- 		for (int i = 0; i < offset/BLOCK_SIZE; i++)
- 			block_no = fat[block_no];
+ 		}
+ 		return 0;
+ 	}
 
- 		return block_no;
+ 	//Get count block numbers of a file given fd, starting at its start-th block
+ 	private static int[] _tfs_get_blocks_fd(int fd, int start, int count)
+ 	{
+ 		if (_tfs_is_extent_fd(fd))
+ 			return _tfs_get_extents_fd(fd).blocks(start, count);
+ 		return Arrays.copyOfRange(_tfs_get_block_map_fd(fd), start, start + count);
  	}
- 	
- 	//Function to extract the filename from a full path
- 	private static byte[] _tfs_extract_filename(byte[] full_path)
+
+ 	//Get the number of blocks allocated to fd
+ 	private static int _tfs_get_no_blocks_fd(int fd)
  	{
-		String full_path_s = new String(full_path);
-		String file_name = "";
- 		StringTokenizer st = new StringTokenizer(full_path_s, "/");
- 		int token_count = st.countTokens();
- 		if(token_count > 1)
- 		{
- 			//Get the last token to extract filename from path
-			for(int i = 0; i < token_count; i++) 
-			{
-				file_name = st.nextToken();
-			}
- 		}else 
- 			{
- 				file_name = st.nextToken();
- 			}
- 		return file_name.getBytes();
+ 		if (_tfs_is_extent_fd(fd))
+ 			return _tfs_get_extents_fd(fd).no_blocks();
+ 		_tfs_get_block_map_fd(fd);
+ 		return fdt_no_blocks[fd];
  	}
- 	
+
+ 	//Get the last block allocated to fd; an extent file with no data blocks yet has its extent block
+ 	private static int _tfs_get_last_block_fd(int fd)
+ 	{
+ 		if (_tfs_is_extent_fd(fd)) {
+ 			int block_no = _tfs_get_extents_fd(fd).last_block();
+ 			return block_no < 0 ? fdt_first_block_no[fd] : block_no;
+ 		}
+ 		return _tfs_get_block_map_fd(fd)[fdt_no_blocks[fd] - 1];
+ 	}
+
+ 	//Get the block map of fd: its blocks in file order, so any offset is one array index away
+ 	//The FAT chain is walked once, the first time the map is needed
+ 	private static int[] _tfs_get_block_map_fd(int fd)
+ 	{
+ 		if (fdt_block_map[fd] != null)
+ 			return fdt_block_map[fd];
+
+ 		int count = 0;
+ 		for (int block_no = fdt_first_block_no[fd]; block_no != -1; block_no = fat[block_no])
+ 			count++;
+ 		int[] map = new int[Math.max(count, 16)];
+ 		int i = 0;
+ 		for (int block_no = fdt_first_block_no[fd]; block_no != -1; block_no = fat[block_no])
+ 			map[i++] = block_no;
+
+ 		fdt_block_map[fd] = map;
+ 		fdt_no_blocks[fd] = count;
+ 		return map;
+ 	}
+
+ 	//Attach new_block_nos in order at the end of the file fd, extending its block map
+ 	//The chain is linked in one pass from the last block, which the block map knows
+ 	//Returns -1 if an extent file needs another extent block and the disk is full
+ 	private static int _tfs_attach_blocks_fd(int fd, int[] new_block_nos)
+ 	{
+ 		if (_tfs_is_extent_fd(fd))
+ 			return _tfs_attach_extents_fd(fd, new_block_nos);
+
+ 		int[] map = _tfs_get_block_map_fd(fd);
+ 		int n = fdt_no_blocks[fd];
+ 		int prev_block_no = map[n - 1];
+ 		for (int block_no : new_block_nos) {
+ 			_tfs_set_fat(prev_block_no, block_no);
+ 			prev_block_no = block_no;
+ 		}
+ 		_tfs_set_fat(prev_block_no, -1);
+
+ 		if (n + new_block_nos.length > map.length)
+ 			map = fdt_block_map[fd] = Arrays.copyOf(map, Math.max(map.length * 2, n + new_block_nos.length));
+ 		System.arraycopy(new_block_nos, 0, map, n, new_block_nos.length);
+ 		fdt_no_blocks[fd] = n + new_block_nos.length;
+ 		return 0;
+ 	}
+
+ 	//Files of an extent file system are extent lists; directories stay FAT chains
+ 	private static boolean _tfs_is_extent_fd(int fd)
+ 	{
+ 		return (pcb_features & FEATURE_EXTENTS) != 0 && !fdt_is_directory[fd];
+ 	}
+
+ 	//Get the extents of fd, read from its extent blocks the first time they are needed
+ 	//The first block of an extent file and the blocks chained to it in the FAT are its extent blocks,
+ 	//each holding the number of extents in it followed by the first block and length of each
+ 	private static TFSExtentMap _tfs_get_extents_fd(int fd)
+ 	{
+ 		if (fdt_extents[fd] != null)
+ 			return fdt_extents[fd];
+
+ 		fdt_extents[fd] = _tfs_read_extents(fdt_first_block_no[fd]);
+ 		return fdt_extents[fd];
+ 	}
+
+ 	//Read the extents kept in the extent blocks starting at first_block_no
+ 	private static TFSExtentMap _tfs_read_extents(int first_block_no)
+ 	{
+ 		TFSExtentMap extents = new TFSExtentMap();
+ 		byte[] block = new byte[pcb_block_size];
+ 		for (int block_no = first_block_no; block_no != -1; block_no = fat[block_no]) {
+ 			_tfs_read_block(block_no, block);
+ 			ByteBuffer bbuf = ByteBuffer.wrap(block);
+ 			int count = bbuf.getInt();
+ 			for (int i = 0; i < count; i++)
+ 				extents.append(bbuf.getInt(), bbuf.getInt());
+ 		}
+ 		return extents;
+ 	}
+
+ 	//Attach new_block_nos at the end of the extent file fd and write back the extent blocks that change
+ 	//Extent blocks it needs are taken first, so nothing changes if there are none left
+ 	private static int _tfs_attach_extents_fd(int fd, int[] new_block_nos)
+ 	{
+ 		TFSExtentMap extents = _tfs_get_extents_fd(fd);
+ 		int per_block = (pcb_block_size / 4 - 1) / 2;
+ 		int old_count = extents.count();
+ 		int have = Math.max(1, (old_count + per_block - 1) / per_block);
+ 		int need = Math.max(1, (extents.count_after(new_block_nos) + per_block - 1) / per_block);
+
+ 		// the last extent block, and new ones linked after it
+
+ 		int last_block_no = fdt_first_block_no[fd];
+ 		while (fat[last_block_no] != -1)
+ 			last_block_no = fat[last_block_no];
+ 		int[] more_block_nos = new int[need - have];
+ 		for (int i = 0; i < more_block_nos.length; i++) {
+ 			more_block_nos[i] = _tfs_get_block_fat(last_block_no + 1);
+ 			if (more_block_nos[i] < 0) {
+ 				while (i > 0)
+ 					_tfs_return_block_fat(more_block_nos[--i]);
+ 				return -1;
+ 			}
+ 		}
+ 		for (int block_no : more_block_nos) {
+ 			_tfs_set_fat(last_block_no, block_no);
+ 			_tfs_set_fat(block_no, -1);
+ 			last_block_no = block_no;
+ 		}
+
+ 		// add the runs of new_block_nos as extents
+
+ 		for (int i = 0, j; i < new_block_nos.length; i = j) {
+ 			for (j = i + 1; j < new_block_nos.length && new_block_nos[j] == new_block_nos[j - 1] + 1; j++)
+ 				;
+ 			extents.append(new_block_nos[i], j - i);
+ 		}
+
+ 		// write back the extent blocks from the one holding the first changed extent on
+
+ 		int first = Math.max(0, old_count - 1) / per_block;
+ 		int block_no = fdt_first_block_no[fd];
+ 		for (int k = 0; k < first; k++)
+ 			block_no = fat[block_no];
+ 		for (int k = first; k < need; k++, block_no = fat[block_no]) {
+ 			ByteBuffer bbuf = ByteBuffer.allocate(pcb_block_size);
+ 			int to = Math.min(extents.count(), (k + 1) * per_block);
+ 			bbuf.putInt(Math.max(0, to - k * per_block));
+ 			for (int i = k * per_block; i < to; i++) {
+ 				bbuf.putInt(extents.disk_block(i));
+ 				bbuf.putInt(extents.length(i));
+ 			}
+ 			_tfs_write_block(block_no, bbuf.array());
+ 		}
+ 		return 0;
+ 	}
+
+ 	//The chain of the file or directory starting at first_block_no changed behind its fd
+ 	private static void _tfs_forget_block_map(int first_block_no)
+ 	{
+ 		int fd = tfs_check_fdt(first_block_no);
+ 		if (fd >= 0) {
+ 			fdt_block_map[fd] = null;
+ 			fdt_extents[fd] = null;
+ 		}
+ 	}
+ 	
+ 	//Function to extract the filename from a full path
+ 	private static byte[] _tfs_extract_filename(byte[] full_path)
+ 	{
+		String full_path_s = new String(full_path);
+		String file_name = "";
+ 		StringTokenizer st = new StringTokenizer(full_path_s, "/");
+ 		int token_count = st.countTokens();
+ 		if(token_count > 1)
+ 		{
+ 			//Get the last token to extract filename from path
+			for(int i = 0; i < token_count; i++) 
+			{
+				file_name = st.nextToken();
+			}
+ 		}else 
+ 			{
+ 				file_name = st.nextToken();
+ 			}
+ 		return file_name.getBytes();
+ 	}
+ 	
  	//Function to extract the parent path from a full path
  	public static byte[] get_parent_path(byte[] full_path)
  	{
@@ -1144,38 +1913,94 @@ public class TFSFileSystem
  	}
  	
  	//Get the entry number and block number of entry_name in directory starting at block_no
+ 	//The entry number is the slot of the entry within that block
  	private static int _tfs_get_entry_location(int first_block_no, byte[] name, int[] entry_block_no)
  	{
- 		
- 		byte[] block = new byte[BLOCK_SIZE];
- 		int entry_no;
  		//Ensure name is only filename
- 		byte[] file_name = _tfs_extract_filename(name);
- 		//Loop through blocks using the FAT - looking for 'name'
- 		do 
- 		{	
- 			//Read block into memory
- 			_tfs_read_block(first_block_no, block);
- 			//Check for 'name' in block by grabbing 15 bytes at each name offset
- 			//in a block
- 			byte[] entry_name = new byte[15];
- 			String sn = new String(file_name);
- 			sn = sn.trim();
- 			for(int i = 5, j = 0; i < 90; i += DIR_ENTRY_SIZE, j++) {
- 				entry_name =_tfs_get_bytes_block(block, i, 15);
- 				String s = new String(entry_name);
- 				s = s.trim();
- 				if(s.equals(sn))
- 				{
- 					entry_block_no[0] = first_block_no;
- 					return entry_no = j;
- 				}
+ 		String sn = new String(_tfs_extract_filename(name));
+ 		TFSDentryCache.Dentry d = _tfs_get_dentry(first_block_no, sn.trim());
+ 		if (d.entry_block_no < 0)
+ 			return -1;
+ 		entry_block_no[0] = d.entry_block_no;
+ 		return d.slot;
+ 	}
+
+ 	//Get the cached entry of name in the directory starting at first_block_no
+ 	//On a miss the directory is scanned and what was found (or not found) is cached
+ 	private static TFSDentryCache.Dentry _tfs_get_dentry(int first_block_no, String name)
+ 	{
+ 		TFSDentryCache.Dentry d = dentries.get(first_block_no, name);
+ 		if (d != null)
+ 			return d;
+
+ 		d = new TFSDentryCache.Dentry();
+ 		d.parent_block_no = first_block_no;
+ 		d.name = name;
+
+ 		//The name index of the directory, or its hash index on disk, tells where the entry is
+ 		TFSDirIndex.Directory dir = _tfs_get_dir_index(first_block_no);
+ 		int[] location = dir.hash_block_no != 0 ? _tfs_hash_find(dir, name) : dir.slots.get(name);
+ 		if (location != null)
+ 		{
+ 			byte[] block = new byte[pcb_block_size];
+ 			_tfs_read_block(location[0], block);
+ 			int offset = dir_format.entry(block, location[1]);
+ 			d.entry_block_no = location[0];
+ 			d.slot = location[1];
+ 			d.is_directory = _tfs_get_byte_block(block, offset + dir_format.is_dir);
+ 			d.fbn = _tfs_get_int_block(block, offset + dir_format.fbn);
+ 			d.size = _tfs_get_int_block(block, offset + dir_format.size);
+ 		}
+ 		dentries.put(d);
+ 		return d;
+ 	}
+
+ 	//Get the name index of the directory starting at first_block_no
+ 	//If there is none yet the whole directory is scanned once to build it
+ 	private static TFSDirIndex.Directory _tfs_get_dir_index(int first_block_no)
+ 	{
+ 		TFSDirIndex.Directory dir = dir_indexes.get(first_block_no);
+ 		if (dir != null)
+ 			return dir;
+
+ 		dir = new TFSDirIndex.Directory();
+ 		byte[] block = new byte[pcb_block_size];
+ 		//The number of entries of the whole directory is kept in its first block
+ 		_tfs_read_block(first_block_no, block);
+ 		int no_entries = _tfs_get_int_block(block, 0);
+ 		int block_no = first_block_no;
+ 		//A directory with a hash index is looked up through it, nothing needs to be scanned
+ 		if ((pcb_features & FEATURE_DIR_HASH) != 0)
+ 			dir.hash_block_no = dir_format.get_int(block, dir_format.index);
+ 		if (dir.hash_block_no != 0)
+ 		{
+ 			_tfs_read_block(dir.hash_block_no, block);
+ 			dir.hash_depth = ByteBuffer.wrap(block).getInt(0);
+ 			no_entries = 0;
+ 		}
+ 		//Loop through the entries, following the FAT to the next block
+ 		for (int i = 0, b = 0; i < no_entries; b++)
+ 		{
+ 			if (b > 0)
+ 			{
+ 				block_no = fat[block_no];
+ 				_tfs_read_block(block_no, block);
  			}
- 			first_block_no = fat[first_block_no];
- 			if(first_block_no == -1)
- 				break;	
- 		}while(true);
- 		return -1;
+ 			int count = dir_format.entries(block, b, no_entries);
+ 			int offset = dir_format.entry(block, 0);
+ 			for (int j = 0; j < count && i < no_entries; j++, i++, offset = dir_format.next(block, offset))
+ 			{
+ 				String s = new String(dir_format.get_name(block, offset));
+ 				dir.slots.put(s.trim(), new int[] { block_no, j });
+ 			}
+ 		}
+ 		//The directory might own blocks past its last entry
+ 		while (fat[block_no] != -1)
+ 			block_no = fat[block_no];
+ 		dir.last_block_no = block_no;
+
+ 		dir_indexes.put(first_block_no, dir);
+ 		return dir;
  	}
 
  	//Read contents of directory
@@ -1189,7 +2014,7 @@ public class TFSFileSystem
 
  		int no_entries;
  		//Empty block for directory block to be read into
- 		byte[] block = new byte[BLOCK_SIZE];
+ 		byte[] block = new byte[pcb_block_size];
  		
  		//Read block located at first block # of directory into empty block
  		_tfs_read_block(fdt_first_block_no[fd], block);
@@ -1200,35 +2025,30 @@ public class TFSFileSystem
  		if (no_entries == 0)
  			return 0;
 
- 		// get the number of blocks allocated to the directory
-
- 		int no_blocks;
- 		if (no_entries == 0)
- 			no_blocks = 1;
- 		else {
- 			no_blocks = no_entries / MAX_ENTRY_DIR;
- 			if (no_entries % MAX_ENTRY_DIR != 0)
- 				no_blocks++;
- 		}
-
- 		// read entries
+ 		// read entries, as many from each block as the directory format keeps there
 
  		int block_no = fdt_first_block_no[fd];
  		byte[] name_tmp = new byte[16];
 
- 		for (int i = 0; i < no_entries; ) {
- 			if (i % MAX_ENTRY_DIR == 0)
+ 		for (int i = 0, b = 0; i < no_entries; b++) {
+ 			if (b > 0) {
+ 				block_no = fat[block_no];
  				_tfs_read_block(block_no, block);
- 			for (int j = 0; j < MAX_ENTRY_DIR && i < no_entries; j++, i++) {
- 				is_directory[i] = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + IS_DIR);
- 				name_tmp = _tfs_get_bytes_block(block, DIR_ENTRY_SIZE * j + NAME, 16);
+ 			}
+ 			int count = dir_format.entries(block, b, no_entries);
+ 			int offset = dir_format.entry(block, 0);
+ 			for (int j = 0; j < count && i < no_entries; j++, i++, offset = dir_format.next(block, offset)) {
+ 				is_directory[i] = _tfs_get_byte_block(block, offset + dir_format.is_dir);
+ 				name_tmp = dir_format.get_name(block, offset);
  				for (int k = 0; k < 16; k++)
  					name[i][k] = name_tmp[k];
- 				nlength[i] = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + NLENGTH);
- 				reserved1 = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + RESERVED1);
- 				reserved2 = _tfs_get_byte_block(block, DIR_ENTRY_SIZE * j + RESERVED2);
- 				first_block_no[i] = _tfs_get_int_block(block, DIR_ENTRY_SIZE * j + FBN);
- 				file_size[i] = _tfs_get_int_block(block, DIR_ENTRY_SIZE * j + SIZE);
+ 				nlength[i] = _tfs_get_byte_block(block, offset + dir_format.nlength);
+ 				if (!dir_format.packed) {
+ 					reserved1 = _tfs_get_byte_block(block, offset + dir_format.reserved1);
+ 					reserved2 = _tfs_get_byte_block(block, offset + dir_format.reserved2);
+ 				}
+ 				first_block_no[i] = _tfs_get_int_block(block, offset + dir_format.fbn);
+ 				file_size[i] = _tfs_get_int_block(block, offset + dir_format.size);
  			}
  		}
 
@@ -1248,12 +2068,17 @@ public class TFSFileSystem
 
  	private static void _tfs_write_pcb()
  	{
- 		int[] ablock = new int[BLOCK_SIZE / 4];
+ 		int[] ablock = new int[pcb_block_size / 4];
  		ablock[0] = pcb_size_fs;
  		ablock[1] = pcb_size_fat;
  		ablock[2] = pcb_pointer_free;
  		ablock[3] = pcb_pointer_root;
  		ablock[4] = pcb_magic;
+ 		ablock[5] = pcb_block_size;
+ 		ablock[6] = pcb_allocator;
+ 		ablock[7] = pcb_size_bitmap;
+ 		ablock[8] = pcb_features;
+ 		ablock[9] = pcb_dir_format;
 
  		ByteBuffer bbuf = ByteBuffer.allocate(ablock.length * 4);
  		bbuf = bbuf.putInt(ablock[0]);
@@ -1261,6 +2086,11 @@ public class TFSFileSystem
  		bbuf = bbuf.putInt(ablock[2]);
  		bbuf = bbuf.putInt(ablock[3]);
  		bbuf = bbuf.putInt(ablock[4]);
+ 		bbuf = bbuf.putInt(ablock[5]);
+ 		bbuf = bbuf.putInt(ablock[6]);
+ 		bbuf = bbuf.putInt(ablock[7]);
+ 		bbuf = bbuf.putInt(ablock[8]);
+ 		bbuf = bbuf.putInt(ablock[9]);
 
  		TFSDiskInputOutput.tfs_dio_write_block(1, bbuf.array());
 
@@ -1274,7 +2104,7 @@ public class TFSFileSystem
 
  	private static void _tfs_read_pcb()
  	{
- 		byte[] bblock = new byte[BLOCK_SIZE];
+ 		byte[] bblock = new byte[pcb_block_size];
 
  		TFSDiskInputOutput.tfs_dio_read_block(1, bblock);
 
@@ -1285,11 +2115,73 @@ public class TFSFileSystem
  		pcb_pointer_free = bbuf.getInt();
  		pcb_pointer_root = bbuf.getInt();
  		pcb_magic = bbuf.getInt();
+ 		pcb_block_size = bbuf.getInt();
+ 		pcb_allocator = bbuf.getInt();  // 0 (ALLOC_FAT) on file systems made before there was a choice
+ 		pcb_size_bitmap = bbuf.getInt();
+ 		pcb_features = bbuf.getInt();
+ 		pcb_dir_format = bbuf.getInt();
+
+ 		// file systems made before the block size was recorded use 128-byte blocks
+
+ 		if (pcb_block_size == 0)
+ 			pcb_block_size = DEFAULT_BLOCK_SIZE;
+
+ 		// and file systems made before the directory format was recorded use version 1
+
+ 		if (pcb_dir_format == 0)
+ 			pcb_dir_format = 1;
+ 		if (TFSDirFormat.of(pcb_dir_format) != null)
+ 			_tfs_set_dir_format(pcb_dir_format);
 
  		return;
  	}
 
 
+ 	/*
+ 	 * find the block size of the file system on the disk and read its PCB
+ 	 * the PCB is block 1, so where it starts depends on the block size:
+ 	 * try every possible block size until one holds a PCB recording that size
+ 	 */
+
+ 	private static int _tfs_probe_pcb()
+ 	{
+ 		for (int block_size = MIN_BLOCK_SIZE; block_size <= MAX_BLOCK_SIZE; block_size *= 2) {
+ 			_tfs_set_block_size(block_size);
+ 			if (TFSDiskInputOutput.tfs_dio_get_size() < 2)
+ 				break;
+ 			_tfs_read_pcb();
+ 			if (pcb_magic == FS_MAGIC && pcb_block_size == block_size && TFSDirFormat.of(pcb_dir_format) != null)
+ 				return 0;
+ 		}
+ 		return -1;
+ 	}
+
+
+ 	private static boolean _tfs_valid_block_size(int block_size)
+ 	{
+ 		return block_size >= MIN_BLOCK_SIZE && block_size <= MAX_BLOCK_SIZE
+ 				&& (block_size & (block_size - 1)) == 0;
+ 	}
+
+
+ 	//Everything that depends on the block size is derived here
+ 	private static void _tfs_set_block_size(int block_size)
+ 	{
+ 		pcb_block_size = block_size;
+ 		max_entry_dir = block_size / dir_format.entry_size;
+ 		TFSDiskInputOutput.tfs_dio_set_block_size(block_size);
+ 	}
+
+
+ 	//Read and write directories in the entry format of the given version
+ 	private static void _tfs_set_dir_format(int version)
+ 	{
+ 		pcb_dir_format = version;
+ 		dir_format = TFSDirFormat.of(version);
+ 		max_entry_dir = pcb_block_size / dir_format.entry_size;
+ 	}
+
+
  	//--------------------------------------------------------------------------
  	/*
  	 * FAT-related utilities
@@ -1297,56 +2189,159 @@ public class TFSFileSystem
 
 
  	/*
- 	 * write FAT back into the disk
+ 	 * write the dirty FAT blocks back into the disk
+ 	 * adjacent dirty blocks go out in one request of up to FAT_IO_SIZE bytes
  	 */
 
  	private static void _tfs_write_fat()
  	{
-		ByteBuffer bbuf = ByteBuffer.allocate(BLOCK_SIZE);
-		int j = 0;
+ 		int per_block = pcb_block_size / 4;
+ 		int chunk = Math.max(1, FAT_IO_SIZE / pcb_block_size);
+ 		long bytes = 0;
+
+ 		for (int j = fat_dirty.nextSetBit(0); j >= 0 && j < pcb_size_fat; j = fat_dirty.nextSetBit(j)) {
+ 			int no_blocks = Math.min(chunk, Math.min(fat_dirty.nextClearBit(j), pcb_size_fat) - j);
+ 			int from = j * per_block;
+ 			int to = (int)Math.min(fat.length, (long)(j + no_blocks) * per_block);
+ 			ByteBuffer bbuf = ByteBuffer.allocate(no_blocks * pcb_block_size);
+ 			bbuf.asIntBuffer().put(fat, from, to - from);
+ 			TFSDiskInputOutput.tfs_dio_write_blocks(_tfs_block_range(2 + j, no_blocks), bbuf);
+ 			bytes += (long)no_blocks * pcb_block_size;
+ 			j += no_blocks;
+ 		}
+ 		fat_dirty.clear();
+ 		fat_bytes_last_sync = bytes;
+ 		fat_bytes_written += bytes;
 
- 		for (int i = 0; i < fat.length; i++) {
- 			bbuf = bbuf.putInt(fat[i]);
- 			if (i % (BLOCK_SIZE/4) == (BLOCK_SIZE/4 - 1)) {
- 				TFSDiskInputOutput.tfs_dio_write_block(2 + j, bbuf.array());
- 				j++;
-	 			bbuf.rewind();
- 			}
+ 		return;
+ 	}
+
+
+ 	//Set the FAT entry of block_no and mark the FAT block holding it dirty
+ 	private static void _tfs_set_fat(int block_no, int value)
+ 	{
+ 		fat[block_no] = value;
+ 		fat_dirty.set(block_no / (pcb_block_size / 4));
+ 	}
+
+
+ 	/*
+ 	 * write the dirty bitmap blocks back into the disk
+ 	 * the bitmap follows the FAT, bit i (of byte i / 8, lowest bit first) is set if block i is free
+ 	 */
+
+ 	private static void _tfs_write_bitmap()
+ 	{
+ 		if (pcb_allocator != ALLOC_BITMAP) {
+ 			bitmap_dirty.clear();
+ 			return;
  		}
 
+ 		int bits_per_block = pcb_block_size * 8;
+ 		int chunk = Math.max(1, FAT_IO_SIZE / pcb_block_size);
+
+ 		for (int j = bitmap_dirty.nextSetBit(0); j >= 0 && j < pcb_size_bitmap; j = bitmap_dirty.nextSetBit(j)) {
+ 			int no_blocks = Math.min(chunk, Math.min(bitmap_dirty.nextClearBit(j), pcb_size_bitmap) - j);
+ 			byte[] bits = free_space.bits().get(j * bits_per_block, (j + no_blocks) * bits_per_block).toByteArray();
+ 			ByteBuffer bbuf = ByteBuffer.allocate(no_blocks * pcb_block_size);
+ 			bbuf.put(0, bits);
+ 			TFSDiskInputOutput.tfs_dio_write_blocks(_tfs_block_range(2 + pcb_size_fat + j, no_blocks), bbuf);
+ 			j += no_blocks;
+ 		}
+ 		bitmap_dirty.clear();
+
  		return;
  	}
 
 
+ 	/*
+ 	 * read the bitmap from the disk and find the free runs in it
+ 	 */
+
+ 	private static void _tfs_read_bitmap()
+ 	{
+ 		int chunk = Math.max(1, FAT_IO_SIZE / pcb_block_size);
+ 		byte[] bytes = new byte[pcb_size_bitmap * pcb_block_size];
+
+ 		for (int j = 0; j < pcb_size_bitmap; j += chunk) {
+ 			int no_blocks = Math.min(chunk, pcb_size_bitmap - j);
+ 			ByteBuffer bbuf = ByteBuffer.wrap(bytes, j * pcb_block_size, no_blocks * pcb_block_size).slice();
+ 			TFSDiskInputOutput.tfs_dio_read_blocks(_tfs_block_range(2 + pcb_size_fat + j, no_blocks), bbuf);
+ 		}
+ 		free_space = new TFSFreeSpace(pcb_size_fs, BitSet.valueOf(bytes));
+ 		pcb_pointer_free = free_space.first_free();
+ 		bitmap_dirty.clear();
+
+ 		return;
+ 	}
+
+
+ 	//Take no_blocks contiguous free blocks near goal_block_no from the bitmap
+ 	//Returns the first of them, -1 if there is no free run that long
+ 	private static int _tfs_get_blocks_bitmap(int no_blocks, int goal_block_no)
+ 	{
+ 		// blocks reserved for appends in memory are not free for anything else
+ 		if (free_space.free_blocks() - reserved_blocks < no_blocks)
+ 			return -1;
+ 		int block_no = free_space.allocate(no_blocks, goal_block_no);
+ 		if (block_no < 0)
+ 			return -1;
+ 		bitmap_dirty.set(block_no / (pcb_block_size * 8), (block_no + no_blocks - 1) / (pcb_block_size * 8) + 1);
+ 		for (int i = block_no; i < block_no + no_blocks; i++)
+ 			if (fat[i] != -1)
+ 				_tfs_set_fat(i, -1);
+ 		pcb_pointer_free = free_space.first_free();
+ 		return block_no;
+ 	}
+
+
  	/*
  	 * read FAT from the disk
  	 */
 
  	private static void _tfs_read_fat()
  	{
-		ByteBuffer bbuf = null;
-		byte[] block = new byte[BLOCK_SIZE];
-		int j = 0;
-
- 		for (int i = 0; i < fat.length; i++) {
- 			if ((i * 4) % BLOCK_SIZE == 0) {
- 				TFSDiskInputOutput.tfs_dio_read_block(2 + j, block);
- 				j++;
- 				bbuf = ByteBuffer.wrap(block);
- 			}
- 			fat[i] = bbuf.getInt();
+ 		int per_block = pcb_block_size / 4;
+ 		int chunk = Math.max(1, FAT_IO_SIZE / pcb_block_size);
+
+ 		for (int j = 0; j < pcb_size_fat; j += chunk) {
+ 			int no_blocks = Math.min(chunk, pcb_size_fat - j);
+ 			int from = j * per_block;
+ 			int to = (int)Math.min(fat.length, (long)(j + no_blocks) * per_block);
+ 			ByteBuffer bbuf = ByteBuffer.allocate(no_blocks * pcb_block_size);
+ 			TFSDiskInputOutput.tfs_dio_read_blocks(_tfs_block_range(2 + j, no_blocks), bbuf);
+ 			bbuf.rewind();
+ 			bbuf.asIntBuffer().get(fat, from, to - from);
  		}
 
  		return;
  	}
 
 
+ 	/*
+ 	 * block numbers first .. first + count - 1
+ 	 */
+
+ 	private static int[] _tfs_block_range(int first, int count)
+ 	{
+ 		int[] block_nos = new int[count];
+ 		for (int i = 0; i < count; i++)
+ 			block_nos[i] = first + i;
+ 		return block_nos;
+ 	}
+
+
  	/*
  	 * get a free block
  	 */
 
- 	private static int _tfs_get_block_fat()
+ 	//goal_block_no is where the block is best placed, e.g. right after the last block of the file
+ 	//Only the bitmap allocator can honour it; the FAT list hands out whatever was freed last
+ 	private static int _tfs_get_block_fat(int goal_block_no)
  	{
+ 		if (pcb_allocator == ALLOC_BITMAP)
+ 			return _tfs_get_blocks_bitmap(1, goal_block_no);
+
  		// if there is no free block, then return error
 
  		if (pcb_pointer_free < 0)
@@ -1361,11 +2356,51 @@ public class TFSFileSystem
  		//Set pcb_pointer_free to the next block;
  		pcb_pointer_free = fat[pcb_pointer_free];
  		//Set FAT value at block_no to -1
- 		fat[block_no] = -1;
+ 		_tfs_set_fat(block_no, -1);
  		return block_no;
  	}
 
 
+ 	/*
+ 	 * get no_blocks free blocks at once, in the order they should be chained
+ 	 * the bitmap allocator hands out as few runs as it can, starting near goal_block_no
+ 	 * if there are not that many free blocks, none is taken and null is returned
+ 	 */
+
+ 	private static int[] _tfs_get_blocks_fat(int no_blocks, int goal_block_no)
+ 	{
+ 		int[] block_nos = new int[no_blocks];
+ 		int n = 0;
+
+ 		if (pcb_allocator == ALLOC_BITMAP) {
+ 			if (free_space.free_blocks() - reserved_blocks < no_blocks)
+ 				return null;
+ 			while (n < no_blocks) {
+ 				// the rest in one run if there is one that long, else the longest run there is
+ 				int run = Math.min(no_blocks - n, free_space.largest_run());
+ 				int first_block_no = _tfs_get_blocks_bitmap(run, goal_block_no);
+ 				for (int i = 0; i < run; i++)
+ 					block_nos[n++] = first_block_no + i;
+ 				goal_block_no = first_block_no + run;
+ 			}
+ 			return block_nos;
+ 		}
+
+ 		// the FAT list does not know how long it is, so put back what was taken if it runs out
+
+ 		while (n < no_blocks) {
+ 			int block_no = _tfs_get_block_fat(goal_block_no);
+ 			if (block_no < 0) {
+ 				while (n > 0)
+ 					_tfs_return_block_fat(block_nos[--n]);
+ 				return null;
+ 			}
+ 			block_nos[n++] = block_no;
+ 		}
+ 		return block_nos;
+ 	}
+
+
  	/*
  	 * return a free block
  	 */
@@ -1374,17 +2409,27 @@ public class TFSFileSystem
  	{
  		// if out of bound, then return
 
- 		if (block_no >= pcb_size_fs || block_no < pcb_size_fat + 2)
+ 		if (block_no >= pcb_size_fs || block_no < pcb_size_fat + pcb_size_bitmap + 2)
  			return;
 
- 		// return a block into the free block list
+ 		// return a block into the free block list, or the bitmap
 
- 		fat[block_no] = pcb_pointer_free;
- 		pcb_pointer_free = block_no;
+ 		if (pcb_allocator == ALLOC_BITMAP) {
+ 			free_space.release(block_no);
+ 			bitmap_dirty.set(block_no / (pcb_block_size * 8));
+ 			pcb_pointer_free = free_space.first_free();
+ 		}
+ 		else {
+ 			_tfs_set_fat(block_no, pcb_pointer_free);
+ 			pcb_pointer_free = block_no;
+ 		}
  		
- 		// Just for good measure clear the block (not really necessary but lets do it anyhow)
- 		byte[] empty_block = new byte[BLOCK_SIZE];
- 		_tfs_write_block(block_no, empty_block);
+ 		// It reads as zeros from now on; the disk releases (or zeroes) it in the background, with the blocks freed around it
+ 		// In a batch it has to wait behind the writes queued for it, or one of them would land on the freed block
+ 		if (io_batch_depth > 0)
+ 			TFSDiskInputOutput.tfs_dio_get_queue().submit_discard(block_no);
+ 		else
+ 			TFSDiskInputOutput.tfs_dio_discard_block(block_no);
  	}
  	
  	/*
@@ -1394,63 +2439,603 @@ public class TFSFileSystem
  	private static void _tfs_return_blocks_fd(int fd)
  	{
 		//Release all blocks allocated to entry
-		//Get the number of blocks allocated to this file
-		int no_blocks_used;
-		
-		//If the size of the file is less than one block size we can release
-		//it's first block no
-		if(fdt_size[fd] < BLOCK_SIZE) 
-		{
-			_tfs_return_block_fat(fdt_first_block_no[fd]);
-			return;
+		//The data blocks of an extent file are its extents, then its extent blocks are released below
+		if (_tfs_is_extent_fd(fd)) {
+			TFSExtentMap extents = _tfs_get_extents_fd(fd);
+			for (int i = 0; i < extents.count(); i++)
+				for (int j = 0; j < extents.length(i); j++)
+					_tfs_return_block_fat(extents.disk_block(i) + j);
+			fdt_extents[fd] = null;
 		}
-		no_blocks_used = fdt_size[fd] / BLOCK_SIZE;
-		if(fdt_size[fd] % BLOCK_SIZE != 0)
-			no_blocks_used++;
-		//Get the block numbers of the allocated blocks
-		int[] block_nums = new int[no_blocks_used];
-		int index = 0;
+		//Use the FAT to walk the chain from the first block until -1
+		//A directory's chain is not related to its size, so the size cannot be used
 		int block_no = fdt_first_block_no[fd];
-		//Use the FAT to get all block numbers
-		do
+		int next_block_no;
+		while(block_no != -1)
 		{
-			block_nums[index] = block_no;
-			block_no = fat[block_no];
-			index++;
-		}while(fat[block_no] != -1 );
-		
-		//Return all blocks to the free block list
-		for(index = 0; index < no_blocks_used; index++)
-			_tfs_return_block_fat(block_nums[index]);
+			next_block_no = fat[block_no];
+			_tfs_return_block_fat(block_no);
+			block_no = next_block_no;
+		}
  	}
 
+
+ 	//--------------------------------------------------------------------------
  	/*
- 	 * attach a block at the end of a file having start_block_no
+ 	 * defragmentation utilities
  	 */
 
- 	private static int _tfs_attach_block_fat(int start_block_no, int new_block_no)
+ 	//Add the files in the directory starting at first_block_no, and in the directories below it, to files
+ 	private static void _tfs_find_files(int first_block_no, ArrayList<TFSDentryCache.Dentry> files)
  	{
- 		// if out of bound, then return
+ 		ArrayList<Integer> dirs = new ArrayList<Integer>();
+ 		byte[] block = new byte[pcb_block_size];
+ 		_tfs_read_block(first_block_no, block);
+ 		int no_entries = _tfs_get_int_block(block, 0);
+ 		int block_no = first_block_no;
+ 		for (int i = 0, b = 0; i < no_entries; b++)
+ 		{
+ 			if (b > 0)
+ 			{
+ 				block_no = fat[block_no];
+ 				_tfs_read_block(block_no, block);
+ 			}
+ 			int count = dir_format.entries(block, b, no_entries);
+ 			int offset = dir_format.entry(block, 0);
+ 			for (int j = 0; j < count && i < no_entries; j++, i++, offset = dir_format.next(block, offset))
+ 			{
+ 				TFSDentryCache.Dentry d = new TFSDentryCache.Dentry();
+ 				d.parent_block_no = first_block_no;
+ 				d.name = new String(dir_format.get_name(block, offset)).trim();
+ 				d.entry_block_no = block_no;
+ 				d.slot = j;
+ 				d.is_directory = _tfs_get_byte_block(block, offset + dir_format.is_dir);
+ 				d.fbn = _tfs_get_int_block(block, offset + dir_format.fbn);
+ 				d.size = _tfs_get_int_block(block, offset + dir_format.size);
+ 				if (d.is_directory == 0)
+ 					dirs.add(d.fbn);
+ 				else
+ 					files.add(d);
+ 			}
+ 		}
+ 		for (int dir_block_no : dirs)
+ 			_tfs_find_files(dir_block_no, files);
+ 	}
+
+ 	//The data blocks of the file d in file order: its FAT chain, or its extents in an extent file system
+ 	private static int[] _tfs_get_blocks_file(TFSDentryCache.Dentry d)
+ 	{
+ 		if ((pcb_features & FEATURE_EXTENTS) != 0) {
+ 			TFSExtentMap extents = _tfs_read_extents(d.fbn);
+ 			return extents.blocks(0, extents.no_blocks());
+ 		}
+ 		int count = 0;
+ 		for (int block_no = d.fbn; block_no != -1; block_no = fat[block_no])
+ 			count++;
+ 		int[] block_nos = new int[count];
+ 		int i = 0;
+ 		for (int block_no = d.fbn; block_no != -1; block_no = fat[block_no])
+ 			block_nos[i++] = block_no;
+ 		return block_nos;
+ 	}
+
+ 	//The number of runs of contiguous blocks in block_nos
+ 	private static int _tfs_count_fragments(int[] block_nos)
+ 	{
+ 		int count = 0;
+ 		for (int i = 0; i < block_nos.length; i++)
+ 			if (i == 0 || block_nos[i] != block_nos[i - 1] + 1)
+ 				count++;
+ 		return count;
+ 	}
+
+ 	//How fragmented files and the free space are
+ 	private static String _tfs_defrag_report(ArrayList<TFSDentryCache.Dentry> files, TFSFreeSpace space)
+ 	{
+ 		int fragmented = 0;
+ 		long fragments = 0;
+ 		for (TFSDentryCache.Dentry d : files) {
+ 			//An empty file of an extent file system has no data blocks, so no fragments
+ 			int[] block_nos = _tfs_get_blocks_file(d);
+ 			if (block_nos.length == 0)
+ 				continue;
+ 			int count = _tfs_count_fragments(block_nos);
+ 			if (count > 1)
+ 				fragmented++;
+ 			fragments += count;
+ 		}
+
+ 		String output = "";
+ 		output += "    Files = " + files.size() + ", fragmented = " + fragmented + "\n";
+ 		output += "    Fragments = " + fragments + (files.isEmpty() ? "" : String.format(" (%.2f per file)", (double)fragments / files.size())) + "\n";
+ 		output += "    Free runs = " + space.run_count() + ", largest free run = " + space.largest_run() + "\n";
+ 		return output;
+ 	}
 
- 		if (new_block_no >= pcb_size_fs || new_block_no < pcb_size_fat + 2)
+ 	//Take a run of no_blocks free blocks near goal_block_no for the defragmenter, -1 if there is none
+ 	//With the FAT list the run is unlinked from the list, free_prev knowing the block before each free one
+ 	private static int _tfs_defrag_get_run(TFSFreeSpace space, int[] free_prev, int no_blocks, int goal_block_no)
+ 	{
+ 		if (pcb_allocator == ALLOC_BITMAP)
+ 			return _tfs_get_blocks_bitmap(no_blocks, goal_block_no);
+
+ 		int first_block_no = space.allocate(no_blocks, goal_block_no);
+ 		if (first_block_no < 0)
  			return -1;
- 		if (start_block_no >= pcb_size_fs || start_block_no < pcb_size_fat + 2)
+ 		for (int block_no = first_block_no; block_no < first_block_no + no_blocks; block_no++) {
+ 			int prev = free_prev[block_no];
+ 			int next = fat[block_no];
+ 			if (prev == -1)
+ 				pcb_pointer_free = next;
+ 			else
+ 				_tfs_set_fat(prev, next);
+ 			if (next != -1)
+ 				free_prev[next] = prev;
+ 			_tfs_set_fat(block_no, -1);
+ 		}
+ 		return first_block_no;
+ 	}
+
+ 	//Give back a block the defragmenter moved a file away from
+ 	private static void _tfs_defrag_return_block(TFSFreeSpace space, int[] free_prev, int block_no)
+ 	{
+ 		_tfs_return_block_fat(block_no);
+ 		if (pcb_allocator == ALLOC_BITMAP)
+ 			return;
+ 		space.release(block_no);
+ 		if (fat[block_no] != -1)
+ 			free_prev[fat[block_no]] = block_no;
+ 		free_prev[block_no] = -1;
+ 	}
+
+ 	//Copy the file d into one run of free blocks if it is in more than one
+ 	//Its new blocks, the FAT and the bitmap are on disk before its entry (or extent block) points at them,
+ 	//and that is on disk before the old blocks are given back, so a crash leaves either copy whole
+ 	//Returns the number of blocks moved, 0 if the file is not fragmented, -1 if there is no run long enough
+ 	private static int _tfs_defrag_file(TFSDentryCache.Dentry d, TFSFreeSpace space, int[] free_prev,
+ 		long bytes_per_second, long started, long blocks_before)
+ 	{
+ 		int[] old_block_nos = _tfs_get_blocks_file(d);
+ 		if (old_block_nos.length == 0 || _tfs_count_fragments(old_block_nos) <= 1)
+ 			return 0;
+ 		int n = old_block_nos.length;
+ 		int first_block_no = _tfs_defrag_get_run(space, free_prev, n, d.parent_block_no);
+ 		if (first_block_no < 0)
+ 			return -1;
+
+ 		// copy the data, a chunk at a time, slowed down to bytes_per_second
+
+ 		int chunk = Math.max(1, FAT_IO_SIZE / pcb_block_size);
+ 		ByteBuffer bbuf = ByteBuffer.allocate(Math.min(chunk, n) * pcb_block_size);
+ 		for (int i = 0; i < n; i += chunk) {
+ 			int count = Math.min(chunk, n - i);
+ 			bbuf.clear();
+ 			_tfs_read_blocks(Arrays.copyOfRange(old_block_nos, i, i + count), bbuf);
+ 			bbuf.flip();
+ 			_tfs_write_blocks(_tfs_block_range(first_block_no + i, count), bbuf);
+ 			if (bytes_per_second > 0) {
+ 				long due = (blocks_before + i + count) * pcb_block_size * 1000000000L / bytes_per_second;
+ 				long ahead = due - (System.nanoTime() - started);
+ 				try {
+ 					if (ahead > 0)
+ 						Thread.sleep(ahead / 1000000, (int)(ahead % 1000000));
+ 				} catch (InterruptedException ie) {
+ 					Thread.currentThread().interrupt();  // the copy is finished, the pass stops after this file
+ 				}
+ 			}
+ 		}
+
+ 		// link the new blocks and make them durable, then switch the file over
+
+ 		boolean extents = (pcb_features & FEATURE_EXTENTS) != 0;
+ 		if (!extents)
+ 			for (int i = 0; i < n; i++)
+ 				_tfs_set_fat(first_block_no + i, i < n - 1 ? first_block_no + i + 1 : -1);
+ 		_tfs_write_pcb();
+ 		_tfs_write_fat();
+ 		_tfs_write_bitmap();
+ 		TFSDiskInputOutput.tfs_dio_sync();
+
+ 		int fd = tfs_check_fdt(d.fbn);
+ 		if (extents) {
+ 			ByteBuffer extent_block = ByteBuffer.allocate(pcb_block_size);
+ 			extent_block.putInt(1).putInt(first_block_no).putInt(n);
+ 			_tfs_write_block(d.fbn, extent_block.array());
+ 		}
+ 		else {
+ 			int size = fd >= 0 ? fdt_size[fd] : d.size;
+ 			byte[] name = d.name.getBytes();
+ 			_tfs_update_entry_dir(d.parent_block_no, name, (byte)name.length, false, first_block_no, size);
+ 		}
+ 		TFSDiskInputOutput.tfs_dio_sync();
+
+ 		// give the old blocks back, and the extent blocks one extent no longer needs
+
+ 		for (int block_no : old_block_nos)
+ 			_tfs_defrag_return_block(space, free_prev, block_no);
+ 		if (extents) {
+ 			for (int block_no = fat[d.fbn]; block_no != -1; ) {
+ 				int next_block_no = fat[block_no];
+ 				_tfs_defrag_return_block(space, free_prev, block_no);
+ 				block_no = next_block_no;
+ 			}
+ 			_tfs_set_fat(d.fbn, -1);
+ 		}
+ 		else
+ 			d.fbn = first_block_no;
+
+ 		// an open file finds its blocks again
+
+ 		if (fd >= 0) {
+ 			fdt_first_block_no[fd] = d.fbn;
+ 			fdt_block_map[fd] = null;
+ 			fdt_extents[fd] = null;
+ 		}
+ 		return n;
+ 	}
+
+
+ 	//--------------------------------------------------------------------------
+ 	/*
+ 	 * directory format conversion utilities
+ 	 */
+
+ 	//Write a copy of the directory starting at first_block_no, and of the directories below it, in new_format
+ 	//The blocks of the copy are added to new_block_nos and those of the original to old_block_nos
+ 	//Returns the first block of the copy, -1 if the disk is full
+ 	private static int _tfs_convert_dir(int first_block_no, TFSDirFormat old_format, TFSDirFormat new_format,
+ 		ArrayList<Integer> old_block_nos, ArrayList<Integer> new_block_nos)
+ 	{
+ 		// the entries, as they are in old_format
+
+ 		byte[] block = new byte[pcb_block_size];
+ 		_tfs_read_block(first_block_no, block);
+ 		int no_entries = old_format.get_int(block, 0);
+ 		int hash_block_no = (pcb_features & FEATURE_DIR_HASH) != 0 ? old_format.get_int(block, old_format.index) : 0;
+ 		byte[] is_directory = new byte[no_entries];
+ 		byte[][] names = new byte[no_entries][];
+ 		int[] nlengths = new int[no_entries];
+ 		int[] fbns = new int[no_entries];
+ 		int[] sizes = new int[no_entries];
+ 		int block_no = first_block_no;
+ 		for (int i = 0, b = 0; i < no_entries; b++) {
+ 			if (b > 0) {
+ 				block_no = fat[block_no];
+ 				_tfs_read_block(block_no, block);
+ 			}
+ 			int count = old_format.entries(block, b, no_entries);
+ 			int offset = old_format.entry(block, 0);
+ 			for (int j = 0; j < count && i < no_entries; j++, i++, offset = old_format.next(block, offset)) {
+ 				is_directory[i] = block[offset + old_format.is_dir];
+ 				names[i] = old_format.get_name(block, offset);
+ 				nlengths[i] = Math.min(block[offset + old_format.nlength], TFSDirFormat.NAME_SIZE);
+ 				fbns[i] = old_format.get_int(block, offset + old_format.fbn);
+ 				sizes[i] = old_format.get_int(block, offset + old_format.size);
+ 			}
+ 		}
+ 		for (block_no = first_block_no; block_no != -1; block_no = fat[block_no])
+ 			old_block_nos.add(block_no);
+ 		//The copy starts without a hash index, it gets a new one when an entry is next added
+ 		if (hash_block_no != 0)
+ 			old_block_nos.addAll(_tfs_hash_get_blocks(hash_block_no));
+
+ 		// the sub-directories first, so the entries can point at their copies
+
+ 		for (int i = 0; i < no_entries; i++) {
+ 			if (is_directory[i] != 0)
+ 				continue;
+ 			fbns[i] = _tfs_convert_dir(fbns[i], old_format, new_format, old_block_nos, new_block_nos);
+ 			if (fbns[i] < 0)
+ 				return -1;
+ 		}
+
+ 		// then this directory, a block at a time near the original, as many entries in each as new_format fits
+
+ 		int new_first_block_no = _tfs_get_block_fat(first_block_no);
+ 		if (new_first_block_no < 0)
  			return -1;
+ 		new_block_nos.add(new_first_block_no);
+ 		byte[] first_block = new byte[pcb_block_size];
+ 		new_format.put_int(first_block, 0, no_entries);
+ 		block_no = new_first_block_no;
+ 		block = first_block;
+ 		for (int i = 0; i < no_entries; i++) {
+ 			if (!new_format.has_room(block, i, nlengths[i])) {
+ 				int next_block_no = _tfs_get_block_fat(block_no + 1);
+ 				if (next_block_no < 0)
+ 					return -1;
+ 				new_block_nos.add(next_block_no);
+ 				_tfs_set_fat(block_no, next_block_no);
+ 				if (block != first_block)
+ 					_tfs_write_block(block_no, block);
+ 				block_no = next_block_no;
+ 				block = new byte[pcb_block_size];
+ 			}
+ 			new_format.put_entry(block, new_format.next_slot(block, i), new_first_block_no, is_directory[i],
+ 				names[i], nlengths[i], fbns[i], sizes[i]);
+ 		}
+ 		if (block != first_block)
+ 			_tfs_write_block(block_no, block);
+ 		_tfs_write_block(new_first_block_no, first_block);
+ 		return new_first_block_no;
+ 	}
+
+
+ 	//--------------------------------------------------------------------------
+ 	/*
+ 	 * hashed directory index utilities
+ 	 */
+
+ 	//Returns the first block of the bucket a name with hash h is in
+ 	//Entry i of the table is the int after the depth and i entries, counted through the chain of the table
+ 	private static int _tfs_hash_get_bucket_no(TFSDirIndex.Directory dir, int h)
+ 	{
+ 		long position = 4 + 4L * (h & ((1 << dir.hash_depth) - 1));
+ 		int block_no = dir.hash_block_no;
+ 		for (long k = position / pcb_block_size; k > 0; k--)
+ 			block_no = fat[block_no];
+ 		byte[] block = new byte[pcb_block_size];
+ 		_tfs_read_block(block_no, block);
+ 		return ByteBuffer.wrap(block).getInt((int)(position % pcb_block_size));
+ 	}
 
- 		// find the last block
+ 	//Point the entries of the table from i on, every step entries, at the bucket starting at bucket_no
+ 	private static void _tfs_hash_set_buckets(TFSDirIndex.Directory dir, int i, int step, int bucket_no)
+ 	{
+ 		byte[] block = new byte[pcb_block_size];
+ 		int block_no = dir.hash_block_no;
+ 		long k = 0;  // the block of the table block_no is
+ 		_tfs_read_block(block_no, block);
+ 		for (; i < 1 << dir.hash_depth; i += step) {
+ 			long position = 4 + 4L * i;
+ 			if (position / pcb_block_size != k) {
+ 				_tfs_write_block(block_no, block);
+ 				for (; k < position / pcb_block_size; k++)
+ 					block_no = fat[block_no];
+ 				_tfs_read_block(block_no, block);
+ 			}
+ 			ByteBuffer.wrap(block).putInt((int)(position % pcb_block_size), bucket_no);
+ 		}
+ 		_tfs_write_block(block_no, block);
+ 	}
 
- 		int last_block_no = start_block_no;
+ 	//Double the table of the hash index of dir, so every bucket has twice the entries pointing at it
+ 	//Returns -1 if the disk is full, and then the table is as it was
+ 	private static int _tfs_hash_grow_table(TFSDirIndex.Directory dir)
+ 	{
+ 		int size = 1 << dir.hash_depth;
+ 		int need = (int)((4 + 8L * size + pcb_block_size - 1) / pcb_block_size);
+
+ 		// the blocks of the table, and new ones linked after them
+
+ 		ArrayList<Integer> block_nos = new ArrayList<Integer>();
+ 		for (int block_no = dir.hash_block_no; block_no != -1; block_no = fat[block_no])
+ 			block_nos.add(block_no);
+ 		int have = block_nos.size();
+ 		if (need > have) {
+ 			int last_block_no = block_nos.get(have - 1);
+ 			int[] more_block_nos = _tfs_get_blocks_fat(need - have, last_block_no + 1);
+ 			if (more_block_nos == null)
+ 				return -1;
+ 			for (int block_no : more_block_nos) {
+ 				_tfs_set_fat(last_block_no, block_no);
+ 				last_block_no = block_no;
+ 				block_nos.add(block_no);
+ 			}
+ 		}
+
+ 		// the second half of the table is a copy of the first
+
+ 		ByteBuffer table = ByteBuffer.allocate(need * pcb_block_size);
+ 		byte[] block = new byte[pcb_block_size];
+ 		for (int k = 0; k < have; k++) {
+ 			_tfs_read_block(block_nos.get(k), block);
+ 			table.put(block);
+ 		}
+ 		table.putInt(0, dir.hash_depth + 1);
+ 		for (int i = 0; i < size; i++)
+ 			table.putInt(4 + 4 * (size + i), table.getInt(4 + 4 * i));
+ 		for (int k = 0; k < need; k++)
+ 			_tfs_write_block(block_nos.get(k), Arrays.copyOfRange(table.array(), k * pcb_block_size, (k + 1) * pcb_block_size));
+ 		dir.hash_depth++;
+ 		return 0;
+ 	}
+
+ 	//Read the bucket starting at block_no, following its chain
+ 	private static TFSDirHash _tfs_hash_read_bucket(int block_no)
+ 	{
+ 		TFSDirHash bucket = new TFSDirHash(0);
+ 		byte[] block = new byte[pcb_block_size];
+ 		for (int k = 0; block_no != -1; k++, block_no = fat[block_no]) {
+ 			_tfs_read_block(block_no, block);
+ 			bucket.read_block(block, k);
+ 		}
+ 		return bucket;
+ 	}
 
- 		while (fat[last_block_no] > 0) {
+ 	//Write the bucket starting at first_block_no, lengthening or shortening its chain to fit it
+ 	//Returns -1 if the disk is full, and then the bucket on disk is as it was
+ 	private static int _tfs_hash_write_bucket(int first_block_no, TFSDirHash bucket)
+ 	{
+ 		int need = bucket.no_blocks(pcb_block_size);
+ 		int have = 1;
+ 		int last_block_no = first_block_no;
+ 		for (; fat[last_block_no] != -1; have++)
  			last_block_no = fat[last_block_no];
+ 		if (need > have) {
+ 			int[] block_nos = _tfs_get_blocks_fat(need - have, last_block_no + 1);
+ 			if (block_nos == null)
+ 				return -1;
+ 			for (int block_no : block_nos) {
+ 				_tfs_set_fat(last_block_no, block_no);
+ 				last_block_no = block_no;
+ 			}
+ 		}
+
+ 		int block_no = first_block_no;
+ 		for (int k = 0; k < need; k++) {
+ 			byte[] block = new byte[pcb_block_size];
+ 			bucket.write_block(block, k);
+ 			_tfs_write_block(block_no, block);
+ 			if (k < need - 1)
+ 				block_no = fat[block_no];
+ 		}
+
+ 		// the blocks the bucket does not need any more
+
+ 		int next_block_no = fat[block_no];
+ 		if (next_block_no != -1)
+ 			_tfs_set_fat(block_no, -1);
+ 		while (next_block_no != -1) {
+ 			block_no = next_block_no;
+ 			next_block_no = fat[block_no];
+ 			_tfs_return_block_fat(block_no);
+ 		}
+ 		return 0;
+ 	}
+
+ 	//Returns { block_no, slot } of the entry of name in the directory with hash index dir, null if there is none
+ 	//Names with the same hash are told apart by reading their entries
+ 	private static int[] _tfs_hash_find(TFSDirIndex.Directory dir, String name)
+ 	{
+ 		int h = TFSDirHash.hash(name);
+ 		TFSDirHash bucket = _tfs_hash_read_bucket(_tfs_hash_get_bucket_no(dir, h));
+ 		byte[] block = new byte[pcb_block_size];
+ 		for (int i = 0; i < bucket.count; i++) {
+ 			if (bucket.hash[i] != h)
+ 				continue;
+ 			_tfs_read_block(bucket.block_no[i], block);
+ 			String s = new String(dir_format.get_name(block, dir_format.entry(block, bucket.slot[i])));
+ 			if (s.trim().equals(name))
+ 				return new int[] { bucket.block_no[i], bucket.slot[i] };
+ 		}
+ 		return null;
+ 	}
+
+ 	//Add the entry at slot of block_no, of a name with hash h, to the hash index of dir
+ 	//A full bucket is split, or lengthened once it uses TFSDirHash.MAX_DEPTH bits
+ 	//Returns -1 if the disk is full; the index then holds what it did, maybe in more buckets
+ 	private static int _tfs_hash_insert(TFSDirIndex.Directory dir, int h, int block_no, int slot)
+ 	{
+ 		while (true) {
+ 			int bucket_no = _tfs_hash_get_bucket_no(dir, h);
+ 			TFSDirHash bucket = _tfs_hash_read_bucket(bucket_no);
+ 			if (bucket.count < TFSDirHash.per_block(pcb_block_size) || bucket.depth == TFSDirHash.MAX_DEPTH) {
+ 				bucket.add(h, block_no, slot);
+ 				return _tfs_hash_write_bucket(bucket_no, bucket);
+ 			}
+
+ 			// a bucket that uses every bit of the table can only split in a table twice as big
+
+ 			if (bucket.depth == dir.hash_depth && _tfs_hash_grow_table(dir) < 0)
+ 				return -1;
+ 			int new_bucket_no = _tfs_get_block_fat(bucket_no + 1);
+ 			if (new_bucket_no < 0)
+ 				return -1;
+
+ 			// the names with the next bit set go to the new bucket, and so do the table entries with it
+
+ 			int bit = 1 << bucket.depth;
+ 			TFSDirHash other = bucket.split();
+ 			_tfs_hash_write_bucket(new_bucket_no, other);
+ 			_tfs_hash_write_bucket(bucket_no, bucket);
+ 			_tfs_hash_set_buckets(dir, (h & (bit - 1)) | bit, bit << 1, new_bucket_no);
+ 		}
+ 	}
+
+ 	//The entry of a name with hash h moved from slot of block_no to new_slot of new_block_no
+ 	//If new_block_no is -1 the entry is gone and is removed from the hash index of dir
+ 	private static void _tfs_hash_move(TFSDirIndex.Directory dir, int h, int block_no, int slot, int new_block_no, int new_slot)
+ 	{
+ 		int bucket_no = _tfs_hash_get_bucket_no(dir, h);
+ 		TFSDirHash bucket = _tfs_hash_read_bucket(bucket_no);
+ 		int i = bucket.find(h, block_no, slot);
+ 		if (i < 0)
+ 			return;
+ 		if (new_block_no < 0)
+ 			bucket.remove(i);
+ 		else {
+ 			bucket.block_no[i] = new_block_no;
+ 			bucket.slot[i] = new_slot;
  		}
+ 		//The bucket is not bigger than it was, so it needs no new block
+ 		_tfs_hash_write_bucket(bucket_no, bucket);
+ 	}
 
- 		// attach the new block
+ 	//Give the directory starting at first_block_no, with name index dir, a hash index of its entries
+ 	//The directory only points at the index once it is whole
+ 	//Returns -1 if the disk is full, and then the directory stays as it was
+ 	private static int _tfs_hash_build(int first_block_no, TFSDirIndex.Directory dir)
+ 	{
+ 		// the table, with one entry, and the one bucket it points at
 
- 		fat[last_block_no] = new_block_no;
- 		fat[new_block_no] = -1;
+ 		int[] block_nos = _tfs_get_blocks_fat(2, first_block_no);
+ 		if (block_nos == null)
+ 			return -1;
+ 		if (!dir_format.fits(block_nos[0])) {
+ 			_tfs_return_block_fat(block_nos[0]);
+ 			_tfs_return_block_fat(block_nos[1]);
+ 			return -1;
+ 		}
+ 		ByteBuffer table = ByteBuffer.allocate(pcb_block_size);
+ 		table.putInt(0);
+ 		table.putInt(block_nos[1]);
+ 		_tfs_write_block(block_nos[0], table.array());
+ 		_tfs_hash_write_bucket(block_nos[1], new TFSDirHash(0));
+ 		dir.hash_block_no = block_nos[0];
+ 		dir.hash_depth = 0;
+
+ 		for (Map.Entry<String, int[]> e : dir.slots.entrySet()) {
+ 			if (_tfs_hash_insert(dir, TFSDirHash.hash(e.getKey()), e.getValue()[0], e.getValue()[1]) < 0) {
+ 				for (int block_no : _tfs_hash_get_blocks(dir.hash_block_no))
+ 					_tfs_return_block_fat(block_no);
+ 				dir.hash_block_no = 0;
+ 				return -1;
+ 			}
+ 		}
 
- 		return new_block_no;
+ 		byte[] block = new byte[pcb_block_size];
+ 		_tfs_read_block(first_block_no, block);
+ 		dir_format.put_int(block, dir_format.index, dir.hash_block_no);
+ 		_tfs_write_block(first_block_no, block);
+ 		dir.slots.clear();
+ 		return 0;
+ 	}
+
+ 	//Returns the blocks of the hash index starting at table_block_no, those of the table first
+ 	private static ArrayList<Integer> _tfs_hash_get_blocks(int table_block_no)
+ 	{
+ 		ArrayList<Integer> block_nos = new ArrayList<Integer>();
+ 		LinkedHashSet<Integer> bucket_nos = new LinkedHashSet<Integer>();
+ 		byte[] block = new byte[pcb_block_size];
+ 		int size = -1;
+ 		for (int block_no = table_block_no, i = 0; block_no != -1; block_no = fat[block_no]) {
+ 			block_nos.add(block_no);
+ 			_tfs_read_block(block_no, block);
+ 			ByteBuffer bbuf = ByteBuffer.wrap(block);
+ 			if (size < 0)
+ 				size = 1 << bbuf.getInt();
+ 			for (; i < size && bbuf.remaining() >= 4; i++)
+ 				bucket_nos.add(bbuf.getInt());
+ 		}
+ 		for (int bucket_no : bucket_nos)
+ 			for (int block_no = bucket_no; block_no != -1; block_no = fat[block_no])
+ 				block_nos.add(block_no);
+ 		return block_nos;
+ 	}
+
+ 	//Free the hash index of the directory starting at first_block_no, if it has one
+ 	private static void _tfs_hash_free(int first_block_no)
+ 	{
+ 		if ((pcb_features & FEATURE_DIR_HASH) == 0)
+ 			return;
+ 		byte[] block = new byte[pcb_block_size];
+ 		_tfs_read_block(first_block_no, block);
+ 		int hash_block_no = dir_format.get_int(block, dir_format.index);
+ 		if (hash_block_no == 0)
+ 			return;
+ 		for (int block_no : _tfs_hash_get_blocks(hash_block_no))
+ 			_tfs_return_block_fat(block_no);
  	}
 
 
@@ -1470,33 +3055,37 @@ public class TFSFileSystem
 
  		// prepare tokenizing
 
- 		String s = new String(name);
+ 		String s = new String(name, 0, nlength);
  		s = s.trim();
  		StringTokenizer st = new StringTokenizer(s, "/");
  		int no_of_tokens = st.countTokens();
+ 		String[] tokens = new String[no_of_tokens];
+ 		for (int i = 0; i < no_of_tokens; i++)
+ 			tokens[i] = st.nextToken();
+
+ 		// a path looked up before is answered without touching any directory
+
+ 		String path = "/" + String.join("/", tokens);
+ 		TFSDentryCache.Dentry d = dentries.get_path(path);
+ 		if (d != null)
+ 			return d.parent_block_no;
+
  		// take out directories or file names, and search in depth
 
- 		String n;
- 		int block_no;
- 		byte[] is_directory = new byte[1];
- 		int[] fbn = new int[1];
- 		int[] size = new int[1];
- 		byte[] bn;
- 		byte bnlen;
+ 		int block_no = pcb_pointer_root;
+ 		String prefix = "";
 
- 		block_no = pcb_pointer_root;
- 		
  		for (int i = 0; i < no_of_tokens; i++)
  		{
- 			n = st.nextToken();
- 			bn = n.getBytes();
- 			bnlen = (byte)(bn.length);
- 			if (_tfs_get_entry_dir(block_no, bn, bnlen, is_directory, fbn, size) < 0)
+ 			d = _tfs_get_dentry(block_no, tokens[i]);
+ 			if (d.entry_block_no < 0)
  				return -1;
- 			if (st.hasMoreTokens() && is_directory[0] != 0)
+ 			prefix += "/" + tokens[i];
+ 			dentries.put_path(prefix, d);
+ 			if (i < no_of_tokens - 1 && d.is_directory != 0)
  				return -1;
- 			if(st.hasMoreTokens())
- 				block_no = fbn[0];
+ 			if (i < no_of_tokens - 1)
+ 				block_no = d.fbn;
  		}
  		return block_no;
  	}
@@ -1507,24 +3096,17 @@ public class TFSFileSystem
  		byte[] is_directory, int[] fbn, int[] size)
  	{
  		//Get the entry for name from the directory of which the first block number is block_no
- 		//Get entry location
- 		int[] entry_block_no = new int[1];
- 		String s = new String(name);
- 		int entry_no = _tfs_get_entry_location(block_no, name, entry_block_no);
+ 		//The dentry cache holds everything needed, so no block is read once it is warm
+ 		String s = new String(_tfs_extract_filename(name));
+ 		TFSDentryCache.Dentry d = _tfs_get_dentry(block_no, s.trim());
 
- 		if(entry_no == -1)
+ 		if(d.entry_block_no < 0)
  			return -1;
  		
- 		//Read the block into memory
- 		byte[] block = new byte[BLOCK_SIZE];
- 		_tfs_read_block(entry_block_no[0], block);
  		//Save info into arrays
- 		//Get is_directory
- 		is_directory[0] = _tfs_get_byte_block(block, entry_no * DIR_ENTRY_SIZE + IS_DIR);
- 		//Get first block number
- 		fbn[0] = _tfs_get_int_block(block, entry_no * DIR_ENTRY_SIZE + FBN);
- 		//Get size
- 		size[0] = _tfs_get_int_block(block, entry_no * DIR_ENTRY_SIZE + SIZE);
+ 		is_directory[0] = d.is_directory;
+ 		fbn[0] = d.fbn;
+ 		size[0] = d.size;
  
  		return 0;
  	}
@@ -1536,158 +3118,258 @@ public class TFSFileSystem
  		byte is_directory, int fbn, int size)
  	{
  		
- 		int parentBlockNo = parent_block_no;
  		//Read the first parent block into memory
- 		byte[] block = new byte[BLOCK_SIZE];
- 		_tfs_read_block(parent_block_no, block);
- 		
- 		//Determine how many entries are in the block
- 		//We will use this to increase the number of entries in this directory block by 1
- 		//as well as find out where we need to write this entry
- 		int entries_no = _tfs_get_int_block(block, 0);
-
- 		//If there are more than 4 entries in the block we need to use the FAT
- 		//to find the block number of the next block allocated to the directory until we reach the
- 		//last block allocated
- 		if(entries_no > 4) {
- 			while(fat[parent_block_no] != -1)
- 				parent_block_no = fat[parent_block_no];
- 		}
- 		//if entries_no % 4 is 0 then we need to allocate a new block to the directory
+ 		//It holds the number of entries of the whole directory
+ 		byte[] first_block = new byte[pcb_block_size];
+ 		_tfs_read_block(parent_block_no, first_block);
+ 		int entries_no = _tfs_get_int_block(first_block, 0);
+
+ 		//The name index of the directory knows the last block allocated to it
+ 		TFSDirIndex.Directory dir = _tfs_get_dir_index(parent_block_no);
+ 		int last_block_no = dir.last_block_no;
+ 		int new_block = -1;
+ 		byte[] block = first_block;
+ 		if(last_block_no != parent_block_no) {
+ 			block = new byte[pcb_block_size];
+ 			_tfs_read_block(last_block_no, block);
+ 		}
+
+ 		//If the last block has no room for the entry we need to allocate a new block to the directory
  		//and update the FAT to indicate this
- 		if(entries_no % 4 == 0 && entries_no != 0) {
- 			System.out.println("Block is full! Allocating new block to directory!");
- 			int new_block;
- 			new_block = _tfs_get_block_fat();
+ 		if(!dir_format.has_room(block, entries_no, nlength)) {
+ 			new_block = _tfs_get_block_fat(last_block_no + 1);
  			//If get_block returned -1 then the disk is full
  			if(new_block < 0) {
  				System.out.println("Disk is full! Cannot allocate a new block. Entry cannot be created!");
  				return -1;
  			}
- 			//Attach the new block to the directory by updating the FAT
- 			_tfs_attach_block_fat(parent_block_no, new_block);
+ 			//Link the new block after the last one; a newly allocated block already ends its chain
+ 			_tfs_set_fat(last_block_no, new_block);
+ 			_tfs_forget_block_map(parent_block_no);
  			//This block number is now where we will be writing the entry into
- 			parent_block_no = new_block; 		
- 			//Read this block into memory for manipulation
- 			_tfs_read_block(parent_block_no, block);
- 			System.out.println("Block: " + parent_block_no + " has been read into memory!");
+ 			last_block_no = new_block;
+ 			block = new byte[pcb_block_size];
  		}
 
- 		//At this point parent_block_no will be a proper place to write this entry to
- 		//We just need to determine where in the block we are going to write it
- 		//We use entries_no to determine this
- 		
- 		//Each entry will be 28 bytes
- 		//If directory has 2 entries then we will write the information in the
- 		//3rd "slot" of the directory block block_no * block_size + ( 2 * dir_entry_size ) or whatever
- 		//If the directory has more than 4 entries then we need to check the FAT to find
- 		//out where the next part of the directory is FAT[block_no] = block_no of next part of directory
- 		//We need to actually loop through the FAT until we find -1 or EOF and then check that block to determine
- 		//how many entries are in it, if there are 4 entries we need to allocate another block for the directory
- 		//and write the new directory entry into that block
- 		
+ 		//The slot the entry takes in the block, which a packed block counts itself
+ 		int slot = dir_format.next_slot(block, entries_no);
 
- 				
-		//Write entry info to block in correct entry position
-		//Set # of entries equal to entries_no + 1 because we are adding a new entry
-		_tfs_put_int_block(block, 0, entries_no + 1);
-		//Set parent block # to block # of parent directory
-		_tfs_put_int_block(block, (entries_no % MAX_ENTRY_DIR) * DIR_ENTRY_SIZE + PARENTBN, parent_block_no);
-		//Set is_directory to is_directory to label this as either a file or a sub-directory
-		_tfs_put_byte_block(block, (entries_no % MAX_ENTRY_DIR) * DIR_ENTRY_SIZE + IS_DIR, is_directory);
-		//Set entry name to name
-		_tfs_put_bytes_block(block, (entries_no % MAX_ENTRY_DIR) * DIR_ENTRY_SIZE + NAME, name, nlength);
-		//Set nlength equal to the length of the desired name
-		_tfs_put_byte_block(block, (entries_no % MAX_ENTRY_DIR) * DIR_ENTRY_SIZE + NLENGTH, (byte)nlength);
-		//Set first block # to block # that this directory entry points to
-		//(where it's subsequent entries or data will be stored)
-		_tfs_put_int_block(block, (entries_no % MAX_ENTRY_DIR) * DIR_ENTRY_SIZE + FBN, fbn);
-		//Set size in entry to size
-		_tfs_put_int_block(block, (entries_no % MAX_ENTRY_DIR) * DIR_ENTRY_SIZE + SIZE, size);
+ 		//A hashed directory has to index the entry before it is written, the index may need blocks too
+ 		if(dir.hash_block_no != 0 && _tfs_hash_insert(dir, TFSDirHash.hash(new String(name, 0, nlength).trim()),
+ 				last_block_no, slot) < 0) {
+ 			if(new_block >= 0) {
+ 				_tfs_set_fat(dir.last_block_no, -1);
+ 				_tfs_return_block_fat(new_block);
+ 				_tfs_forget_block_map(parent_block_no);
+ 			}
+ 			System.out.println("Disk is full! Cannot allocate a new block. Entry cannot be created!");
+ 			return -1;
+ 		}
+
+		//Write the parent block #, whether this is a file or a sub-directory, the name,
+		//the first block # the entry points to (where its entries or data are stored) and the size
+		dir_format.put_entry(block, slot, parent_block_no, is_directory, name, nlength, fbn, size);
 		//Write the block back to the file
-		_tfs_write_block(parentBlockNo, block);
+		if(last_block_no != parent_block_no)
+			_tfs_write_block(last_block_no, block);
+		//Set # of entries equal to entries_no + 1 because we are adding a new entry
+		_tfs_put_int_block(first_block, 0, entries_no + 1);
+		_tfs_write_block(parent_block_no, first_block);
+
+		//Remember the new entry, replacing a cached "not found" for its name
+		TFSDentryCache.Dentry d = new TFSDentryCache.Dentry();
+		d.parent_block_no = parent_block_no;
+		d.name = new String(name, 0, nlength).trim();
+		if (dir.hash_block_no == 0)
+			dir.slots.put(d.name, new int[] { last_block_no, slot });
+		dir.last_block_no = last_block_no;
+		d.entry_block_no = last_block_no;
+		d.slot = slot;
+		d.is_directory = is_directory;
+		d.fbn = fbn;
+		d.size = size;
+		dentries.put(d);
+
+		//A directory that has grown past HASH_MIN_BLOCKS gets a hash index, if there is room for one
+		if (dir.hash_block_no == 0 && (pcb_features & FEATURE_DIR_HASH) != 0) {
+			int no_blocks = 0;
+			for (int b = parent_block_no; b != -1 && no_blocks <= HASH_MIN_BLOCKS; b = fat[b])
+				no_blocks++;
+			if (no_blocks > HASH_MIN_BLOCKS)
+				_tfs_hash_build(parent_block_no, dir);
+		}
 
 		return 0;
  	}
 
  	//Delete entry with 'name' in directory that begins in 'block_no'
  	//name is not full path
+ 	//The last entry of the directory is moved into the freed slot so entries stay packed
  	private static void _tfs_delete_entry_dir(int block_no, byte[] name, byte nlength)
  	{
- 		//Byte arrays
- 		byte[] empty_entry = new byte[DIR_ENTRY_SIZE];
- 		byte[] empty_block = new byte[BLOCK_SIZE];
- 		byte[] last_entry = new byte[DIR_ENTRY_SIZE];
- 		byte[] block = new byte[BLOCK_SIZE];
- 		
  		//Read the first parent block into memory
- 		_tfs_read_block(block_no, block);		
+ 		byte[] first_block = new byte[pcb_block_size];
+ 		_tfs_read_block(block_no, first_block);
  		//find out how many entries are in directory
- 		int no_entries = _tfs_get_int_block(block, 0);
- 		//Update the no_entries to no_entries - 1
- 		_tfs_put_int_block(block, 0, no_entries - 1);
- 		//Write parent block back to disk
- 		_tfs_write_block(block_no, block);
- 		
- 		//Check to see if this is the only entry in the directory
- 		//If so, we can simply write an empty block back to the disk
- 		if(no_entries == 1) 
- 		{
- 			System.out.print("Deleting last entry in directory!");
- 			_tfs_write_block(block_no, empty_block);
- 			System.out.println("Directory is now empty!");
- 			return;
- 		}
- 		
+ 		int no_entries = _tfs_get_int_block(first_block, 0);
+
  		//Find where the entry we want to delete is located
  		int[] entry_block_no = new int[1];
  		int del_entry_no = _tfs_get_entry_location(block_no, name, entry_block_no);
+ 		if(del_entry_no < 0)
+ 			return;
+ 		if(dir_format.packed) {
+ 			_tfs_delete_entry_block(block_no, first_block, no_entries, entry_block_no[0], del_entry_no,
+ 				new String(_tfs_extract_filename(name)).trim());
+ 			return;
+ 		}
 
- 		//Get the block number that holds the last entry
- 		//If no_entries is less than or equal to MAX_ENTRY_DIR then this will be the
- 		//same as the first allocated block number (block_no)
+ 		//Get the block number that holds the last entry, and the block before it
+ 		int prev_block_no = -1;
  		int last_block_no = block_no;
- 		if(no_entries > MAX_ENTRY_DIR)
- 			while(fat[last_block_no] != -1)
- 				last_block_no = fat[block_no];
- 		
- 		if(last_block_no == entry_block_no[0])
- 		{
- 			if(no_entries > 4 && no_entries % MAX_ENTRY_DIR == 1)
- 			{
- 				_tfs_write_block(last_block_no, empty_block);
+ 		for(int i = 0; i < (no_entries - 1) / max_entry_dir; i++) {
+ 			prev_block_no = last_block_no;
+ 			last_block_no = fat[last_block_no];
+ 		}
+ 		int last_entry_no = (no_entries - 1) % max_entry_dir;
+
+ 		//Read the blocks involved, sharing the arrays when they are the same block
+ 		byte[] last_block = first_block;
+ 		if(last_block_no != block_no) {
+ 			last_block = new byte[pcb_block_size];
+ 			_tfs_read_block(last_block_no, last_block);
+ 		}
+ 		byte[] del_entry_block = last_block;
+ 		if(entry_block_no[0] == block_no)
+ 			del_entry_block = first_block;
+ 		else if(entry_block_no[0] != last_block_no) {
+ 			del_entry_block = new byte[pcb_block_size];
+ 			_tfs_read_block(entry_block_no[0], del_entry_block);
+ 		}
+
+ 		//Overwrite the deleted entry with the last entry, then clear the last slot
+ 		//An entry starts at its parent block number; the bytes before it in slot 0 hold no_entries
+ 		int entry_length = dir_format.entry_size - dir_format.parentbn;
+ 		byte[] last_entry = _tfs_get_bytes_block(last_block, last_entry_no * dir_format.entry_size + dir_format.parentbn, entry_length);
+ 		_tfs_put_bytes_block(del_entry_block, del_entry_no * dir_format.entry_size + dir_format.parentbn, last_entry, entry_length);
+ 		String del_name = new String(_tfs_extract_filename(name)).trim();
+ 		String moved_name = new String(_tfs_get_bytes_block(last_entry, dir_format.name - dir_format.parentbn, 16)).trim();
+ 		dentries.remove(block_no, del_name);
+ 		dentries.move(block_no, moved_name, entry_block_no[0], del_entry_no);
+ 		TFSDirIndex.Directory dir = _tfs_get_dir_index(block_no);
+ 		if (dir.hash_block_no != 0) {
+ 			_tfs_hash_move(dir, TFSDirHash.hash(del_name), entry_block_no[0], del_entry_no, -1, 0);
+ 			if (!moved_name.equals(del_name))
+ 				_tfs_hash_move(dir, TFSDirHash.hash(moved_name), last_block_no, last_entry_no, entry_block_no[0], del_entry_no);
+ 		}
+ 		else {
+ 			dir.slots.remove(del_name);
+ 			if (!moved_name.equals(del_name))
+ 				dir.slots.put(moved_name, new int[] { entry_block_no[0], del_entry_no });
+ 		}
+ 		_tfs_put_bytes_block(last_block, last_entry_no * dir_format.entry_size + dir_format.parentbn, new byte[entry_length], entry_length);
+ 		//Update the no_entries to no_entries - 1
+ 		_tfs_put_int_block(first_block, 0, no_entries - 1);
+
+ 		//Write the blocks back to disk
+ 		if(del_entry_block != first_block && del_entry_block != last_block)
+ 			_tfs_write_block(entry_block_no[0], del_entry_block);
+ 		if(last_block != first_block) {
+ 			//If the last block is now empty we can return it to the free block list
+ 			if(last_entry_no == 0) {
+ 				_tfs_set_fat(prev_block_no, -1);
  				_tfs_return_block_fat(last_block_no);
+ 				dir.last_block_no = prev_block_no;
+ 				_tfs_forget_block_map(block_no);
  			}
- 				
- 			_tfs_read_block(last_block_no, block);
- 			last_entry = _tfs_get_bytes_block(block, (no_entries - 1) % MAX_ENTRY_DIR * DIR_ENTRY_SIZE, DIR_ENTRY_SIZE);
- 			_tfs_put_bytes_block(block, del_entry_no * DIR_ENTRY_SIZE, last_entry, last_entry.length);
- 			_tfs_put_bytes_block(block, (no_entries - 1) % MAX_ENTRY_DIR * DIR_ENTRY_SIZE, empty_entry, empty_entry.length);
- 			_tfs_write_block(last_block_no, block);
+ 			else
+ 				_tfs_write_block(last_block_no, last_block);
  		}
- 		
- 		
- 		//Entries are in different blocks
-	 	//Read block with last entry into memory
-	 	_tfs_read_block(last_block_no, block);
- 		//Get last entry
-	 	last_entry = _tfs_get_bytes_block(block, (no_entries - 1) % MAX_ENTRY_DIR * DIR_ENTRY_SIZE, last_entry.length);
- 		//Read block with entry to be deleted into memory
-	 	byte[] del_entry_block = new byte[BLOCK_SIZE];
-	 	_tfs_read_block(entry_block_no[0], del_entry_block);
-	 	//overwrite del_entry with last_entry and write block back to disk <--this is so entry cannot be found again
- 		_tfs_put_bytes_block(del_entry_block, del_entry_no % MAX_ENTRY_DIR * DIR_ENTRY_SIZE, last_entry, last_entry.length);
- 		//Write block back to disk
- 		_tfs_write_block(entry_block_no[0], del_entry_block);
- 		//Overwrite last_entry with empty_entry
- 		_tfs_put_bytes_block(block, (no_entries - 1) % MAX_ENTRY_DIR * DIR_ENTRY_SIZE, empty_entry, empty_entry.length);
- 		//If this is the last entry in this block we can return this block to the
- 		//free block list
- 		if(no_entries > MAX_ENTRY_DIR && no_entries % MAX_ENTRY_DIR == 1)
- 			_tfs_return_block_fat(last_block_no);
- 		//Write block back to disk
- 		_tfs_write_block(last_block_no, block);
- 		
+ 		_tfs_write_block(block_no, first_block);
+ 	}
+
+ 	//Delete the entry in slot del_entry_no of block del_block_no, named del_name, in a packed directory
+ 	//The last entry of the same block is moved into the freed slot, then the last entry of the directory
+ 	//is moved to the end of that block if it fits, so mostly only the last block is left partly empty
+ 	private static void _tfs_delete_entry_block(int block_no, byte[] first_block, int no_entries,
+ 		int del_block_no, int del_entry_no, String del_name)
+ 	{
+ 		TFSDirIndex.Directory dir = _tfs_get_dir_index(block_no);
+ 		byte[] block = first_block;
+ 		if(del_block_no != block_no) {
+ 			block = new byte[pcb_block_size];
+ 			_tfs_read_block(del_block_no, block);
+ 		}
+ 		int last_entry_no = dir_format.entries(block, 0, 0) - 1;
+ 		String moved_name = new String(dir_format.get_name(block, dir_format.entry(block, last_entry_no))).trim();
+ 		dir_format.remove(block, del_entry_no);
+ 		dentries.remove(block_no, del_name);
+ 		if (dir.hash_block_no != 0)
+ 			_tfs_hash_move(dir, TFSDirHash.hash(del_name), del_block_no, del_entry_no, -1, 0);
+ 		else
+ 			dir.slots.remove(del_name);
+ 		if (last_entry_no != del_entry_no)
+ 			_tfs_move_entry_index(dir, block_no, moved_name, del_block_no, last_entry_no, del_block_no, del_entry_no);
+
+ 		//The last block of the directory gives up its last entry
+ 		int last_block_no = dir.last_block_no;
+ 		if(last_block_no != del_block_no) {
+ 			byte[] last_block = new byte[pcb_block_size];
+ 			_tfs_read_block(last_block_no, last_block);
+ 			int count = dir_format.entries(last_block, 0, 0);
+ 			int offset = dir_format.entry(last_block, count - 1);
+ 			if(count > 0 && dir_format.has_room(block, 0, last_block[offset + dir_format.nlength])) {
+ 				byte[] fill_name = dir_format.get_name(last_block, offset);
+ 				int slot = dir_format.next_slot(block, 0);
+ 				dir_format.put_entry(block, slot, block_no, last_block[offset + dir_format.is_dir], fill_name,
+ 					last_block[offset + dir_format.nlength], _tfs_get_int_block(last_block, offset + dir_format.fbn),
+ 					_tfs_get_int_block(last_block, offset + dir_format.size));
+ 				dir_format.remove(last_block, count - 1);
+ 				_tfs_move_entry_index(dir, block_no, new String(fill_name).trim(), last_block_no, count - 1, del_block_no, slot);
+ 				if(count == 1)
+ 					_tfs_unlink_block_dir(dir, block_no, last_block_no);
+ 				else
+ 					_tfs_write_block(last_block_no, last_block);
+ 			}
+ 		}
+
+ 		//Update the no_entries to no_entries - 1
+ 		_tfs_put_int_block(first_block, 0, no_entries - 1);
+
+ 		//Write the blocks back to disk, or return the emptied block to the free block list
+ 		if(block != first_block) {
+ 			if(dir_format.entries(block, 0, 0) == 0)
+ 				_tfs_unlink_block_dir(dir, block_no, del_block_no);
+ 			else
+ 				_tfs_write_block(del_block_no, block);
+ 		}
+ 		_tfs_write_block(block_no, first_block);
+ 	}
+
+ 	//The entry of name in the directory starting at first_block_no moved from old_slot of old_block_no
+ 	//to new_slot of new_block_no; point its index and cached entry there
+ 	private static void _tfs_move_entry_index(TFSDirIndex.Directory dir, int first_block_no, String name,
+ 		int old_block_no, int old_slot, int new_block_no, int new_slot)
+ 	{
+ 		if (dir.hash_block_no != 0)
+ 			_tfs_hash_move(dir, TFSDirHash.hash(name), old_block_no, old_slot, new_block_no, new_slot);
+ 		else
+ 			dir.slots.put(name, new int[] { new_block_no, new_slot });
+ 		dentries.move(first_block_no, name, new_block_no, new_slot);
+ 	}
+
+ 	//Take the empty block block_no, not the first one, out of the directory starting at first_block_no and free it
+ 	private static void _tfs_unlink_block_dir(TFSDirIndex.Directory dir, int first_block_no, int block_no)
+ 	{
+ 		int prev_block_no = first_block_no;
+ 		while(fat[prev_block_no] != block_no)
+ 			prev_block_no = fat[prev_block_no];
+ 		_tfs_set_fat(prev_block_no, fat[block_no]);
+ 		_tfs_set_fat(block_no, -1);
+ 		_tfs_return_block_fat(block_no);
+ 		if(dir.last_block_no == block_no)
+ 			dir.last_block_no = prev_block_no;
+ 		_tfs_forget_block_map(first_block_no);
  	}
  	
  	//Will update all parent directory entries sizes given
@@ -1698,39 +3380,25 @@ public class TFSFileSystem
  		//name is a full path to the file/directory that is being deleted/created/modified
  		//We need to open each parent directory and update the size
  		
- 		//Split the full path and open directories saving the fd into an array
  		if (name[0] != '/')
  			return -1;
  		String s = new String(name);
  		s = s.trim();
  		int fd;
- 		//Check if root
  		String slash = "/";
- 		if(s.equals(slash))
- 		{
- 			fd = tfs_open(name, name.length);
- 			fdt_size[fd] += size_of_change;
- 			 _tfs_update_entry_dir(fdt_parent_block_no[fd], fdt_name[fd], (byte)fdt_nlength[fd],
-					 fdt_is_directory[fd], fdt_first_block_no[fd], fdt_size[fd]);
- 			 return 0;
- 		}
- 		
- 		//Update all parent directories
- 		StringTokenizer st = new StringTokenizer(s, "/");
- 		int token_count = st.countTokens();
  		
-		//Get all but last token to extract path to parent directory
-		for(int j = 1; j < token_count; j++) {
-			StringTokenizer sx = new StringTokenizer(s, "/");
-			String parent_dir_path = "";
-			for(int i = 0; i < token_count - j; i++) 
-			{
-				parent_dir_path = "/";
-				parent_dir_path += sx.nextToken();
-			}
-			
+ 		//Update all parent directories, deepest first
+ 		//If name is the root itself only the root is updated below
+ 		String[] tokens = s.split("/+");
+ 		for(int j = tokens.length - 1; j > 1; j--) {
+ 			String parent_dir_path = "";
+ 			for(int i = 1; i < j; i++)
+ 				parent_dir_path += "/" + tokens[i];
+ 			
  			//Open the directory
  			fd = tfs_open(parent_dir_path.getBytes(), parent_dir_path.getBytes().length);
+ 			if(fd < 0)
+ 				return -1;
  			//Update FDT entry
  			fdt_size[fd] += size_of_change;
  			//Update directory entry
@@ -1740,9 +3408,9 @@ public class TFSFileSystem
 		//Now open root and update size
  		byte[] root = slash.getBytes();
  		fd = tfs_open(root, root.length);
-			fdt_size[fd] += size_of_change;
-			_tfs_update_entry_dir(fdt_parent_block_no[fd], fdt_name[fd], (byte)fdt_nlength[fd],
-				 fdt_is_directory[fd], fdt_first_block_no[fd], fdt_size[fd]);
+		fdt_size[fd] += size_of_change;
+		_tfs_update_entry_dir(fdt_parent_block_no[fd], fdt_name[fd], (byte)fdt_nlength[fd],
+			 fdt_is_directory[fd], fdt_first_block_no[fd], fdt_size[fd]);
  		return 0;
 
  	}
@@ -1762,23 +3430,33 @@ public class TFSFileSystem
  			return;
  		
  		//Read the block that the entry is in into memory
- 		byte[] block = new byte[BLOCK_SIZE];
+ 		byte[] block = new byte[pcb_block_size];
  		_tfs_read_block(entry_block_no[0], block);
  		
  		//Update the entry with the supplied information
  		//Write entry info to block in correct entry position
- 		//Update parent_block_no
- 		_tfs_put_int_block(block, entry_no * DIR_ENTRY_SIZE + PARENTBN, parent_block_no);
+ 		int offset = dir_format.entry(block, entry_no);
+ 		//Update parent_block_no, which a packed entry does not keep
+ 		if(!dir_format.packed)
+ 			_tfs_put_int_block(block, offset + dir_format.parentbn, parent_block_no);
 		//Set is_directory byte in entry to is_directory
-		_tfs_put_byte_block(block, entry_no * DIR_ENTRY_SIZE + IS_DIR, (byte)(is_directory?0:1));
-		//Set name to name
-		_tfs_put_bytes_block(block, entry_no * DIR_ENTRY_SIZE + NAME, name, name.length);
+		_tfs_put_byte_block(block, offset + dir_format.is_dir, (byte)(is_directory?0:1));
+		//The entry was found by this name, so rewriting it never makes it longer
+		byte[] file_name = _tfs_extract_filename(name);
+		dir_format.rename(block, entry_no, file_name, file_name.length);
 		//Set first block # to block # that this directory entry points to
-		_tfs_put_int_block(block, entry_no * DIR_ENTRY_SIZE + FBN, fbn);
+		_tfs_put_int_block(block, offset + dir_format.fbn, fbn);
 		//Set size int in entry to size
-		_tfs_put_int_block(block, entry_no * DIR_ENTRY_SIZE + SIZE, size);
+		_tfs_put_int_block(block, offset + dir_format.size, size);
 		//Write the block back to the file
 		_tfs_write_block(entry_block_no[0], block);
+		//Keep the cached entry in step
+		TFSDentryCache.Dentry d = dentries.get(parent_block_no, new String(file_name).trim());
+		if (d != null) {
+			d.is_directory = (byte)(is_directory?0:1);
+			d.fbn = fbn;
+			d.size = size;
+		}
  	}
 
 
@@ -1789,29 +3467,22 @@ public class TFSFileSystem
 
 
  	/*
- 	 * get an int from a block
+ 	 * get an int from a directory block, as wide as the directory format makes it
  	 */
 
  	private static int _tfs_get_int_block(byte[] block, int offset)
  	{	
- 		byte[] int_bytes = new byte[2];
- 		int_bytes = _tfs_get_bytes_block(block, offset, 2);
-		int x = (0 << 24) | (0 << 16)
-	            | ((int_bytes[1] & 0xFF) << 8) | ((int_bytes[0] & 0xFF) << 0);
-		return x;
+ 		return dir_format.get_int(block, offset);
  	}
 
 
  	/*
- 	 * put an int into a block
+ 	 * put an int into a directory block, as wide as the directory format makes it
  	 */
 
  	private static void _tfs_put_int_block(byte[] block, int offset, int data)
  	{
-		byte[] byte_int = new byte[2];
-		byte_int[0] = (byte) (data & 0xFF);
-		byte_int[1] = (byte) ((data >> 8) & 0xFF);
-		_tfs_put_bytes_block(block, offset, byte_int, 2);
+ 		dir_format.put_int(block, offset, data);
  	}
 
 
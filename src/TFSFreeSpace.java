@@ -0,0 +1,159 @@
+import java.util.*;
+
+/*
+ * Free blocks of a TFS file system made with the bitmap allocator
+ *
+ * The bitmap has one bit per block, set if the block is free; it is what
+ * TFSFileSystem keeps on disk. On top of it the free blocks are kept as
+ * runs (start -> length), and the runs are also grouped by length, so a
+ * request for n contiguous blocks near a goal block is answered with a few
+ * tree lookups: the run holding the goal, else the run starting after it,
+ * else the shortest run that is long enough, the one nearest after the
+ * goal among those.
+ */
+
+public class TFSFreeSpace
+{
+	private int size;  // the number of blocks covered
+	private BitSet free;
+	private TreeMap<Integer, Integer> runs = new TreeMap<Integer, Integer>();  // start -> length
+	private TreeMap<Integer, TreeSet<Integer>> by_length = new TreeMap<Integer, TreeSet<Integer>>();  // length -> starts
+	private int free_blocks = 0;
+
+	//free has a bit set for every free block below size
+	public TFSFreeSpace(int size, BitSet free)
+	{
+		this.size = size;
+		this.free = free;
+		free.clear(size, Math.max(size, free.length()));
+		for (int start = free.nextSetBit(0); start >= 0; ) {
+			int end = free.nextClearBit(start);
+			_tfs_add_run(start, end - start);
+			free_blocks += end - start;
+			start = free.nextSetBit(end);
+		}
+	}
+
+	//Take no_blocks contiguous free blocks as close after goal_block_no as possible
+	//Returns the first of them, or -1 if there is no run that long
+	int allocate(int no_blocks, int goal_block_no)
+	{
+		if (no_blocks <= 0)
+			return -1;
+
+		// the run holding the goal, from the goal on
+
+		Map.Entry<Integer, Integer> run = runs.floorEntry(goal_block_no);
+		if (run != null && run.getKey() + run.getValue() >= goal_block_no + no_blocks) {
+			use(goal_block_no, no_blocks);
+			return goal_block_no;
+		}
+
+		// the next run after the goal
+
+		run = runs.higherEntry(goal_block_no);
+		if (run != null && run.getValue() >= no_blocks) {
+			use(run.getKey(), no_blocks);
+			return run.getKey();
+		}
+
+		// the shortest run long enough, nearest after the goal
+
+		Map.Entry<Integer, TreeSet<Integer>> fit = by_length.ceilingEntry(no_blocks);
+		if (fit == null)
+			return -1;
+		Integer start = fit.getValue().ceiling(goal_block_no);
+		if (start == null)
+			start = fit.getValue().first();
+		use(start, no_blocks);
+		return start;
+	}
+
+	//Mark the free blocks from start_block_no to start_block_no + no_blocks - 1 used
+	void use(int start_block_no, int no_blocks)
+	{
+		int end = start_block_no + no_blocks;
+		Map.Entry<Integer, Integer> run = runs.floorEntry(start_block_no);
+		int run_start = run.getKey();
+		int run_end = run_start + run.getValue();
+
+		_tfs_remove_run(run_start, run.getValue());
+		if (run_start < start_block_no)
+			_tfs_add_run(run_start, start_block_no - run_start);
+		if (end < run_end)
+			_tfs_add_run(end, run_end - end);
+		free.clear(start_block_no, end);
+		free_blocks -= no_blocks;
+	}
+
+	//Mark the used block block_no free, merging it with the runs next to it
+	void release(int block_no)
+	{
+		if (block_no < 0 || block_no >= size || free.get(block_no))
+			return;
+
+		int start = block_no;
+		int end = block_no + 1;
+		Map.Entry<Integer, Integer> before = runs.floorEntry(block_no);
+		if (before != null && before.getKey() + before.getValue() == block_no) {
+			start = before.getKey();
+			_tfs_remove_run(before.getKey(), before.getValue());
+		}
+		Integer after_length = runs.get(end);
+		if (after_length != null) {
+			_tfs_remove_run(end, after_length);
+			end += after_length;
+		}
+		_tfs_add_run(start, end - start);
+		free.set(block_no);
+		free_blocks++;
+	}
+
+	boolean is_free(int block_no)
+	{
+		return free.get(block_no);
+	}
+
+	//Returns the lowest free block, -1 if the disk is full
+	int first_free()
+	{
+		return runs.isEmpty() ? -1 : runs.firstKey();
+	}
+
+	int free_blocks()
+	{
+		return free_blocks;
+	}
+
+	//The number of free runs; many short runs mean free space is fragmented
+	int run_count()
+	{
+		return runs.size();
+	}
+
+	int largest_run()
+	{
+		return by_length.isEmpty() ? 0 : by_length.lastKey();
+	}
+
+	//The bitmap itself, one bit per block, for writing it to the disk
+	BitSet bits()
+	{
+		return free;
+	}
+
+	private void _tfs_add_run(int start, int length)
+	{
+		runs.put(start, length);
+		by_length.computeIfAbsent(length, k -> new TreeSet<Integer>()).add(start);
+	}
+
+	private void _tfs_remove_run(int start, int length)
+	{
+		runs.remove(start);
+		TreeSet<Integer> starts = by_length.get(length);
+		starts.remove(start);
+		if (starts.isEmpty())
+			by_length.remove(length);
+	}
+}
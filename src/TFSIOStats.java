@@ -0,0 +1,123 @@
+/*
+ * Disk I/O counters kept by TFSDiskInputOutput
+ *
+ * Every block request is counted once, whatever number of blocks it moves:
+ * its blocks and bytes, whether it starts where the previous request of the
+ * same kind ended (sequential) or not (random), and its latency in a
+ * histogram of power-of-2 microsecond buckets. Callers hold the
+ * TFSDiskInputOutput lock, so the counters are plain fields.
+ */
+
+public class TFSIOStats
+{
+	static final int READ = 0;
+	static final int WRITE = 1;
+	static final int LATENCY_BUCKETS = 24;  // bucket i counts requests under 2^i us, the last one everything slower
+
+	long[] ops = new long[2];
+	long[] blocks = new long[2];
+	long[] bytes = new long[2];
+	long[] sequential = new long[2];
+	long[] nanos = new long[2];
+	long[][] latency = new long[2][LATENCY_BUCKETS];
+	long zero_blocks = 0;  // blocks read as zeros without touching the device
+	long discards = 0;  // blocks discarded
+	long free_runs = 0;  // device requests releasing or zeroing discarded blocks
+	long zeroed_blocks = 0;  // discarded blocks overwritten with zeros on the device
+	long cache_hits = 0;  // blocks found in the buffer cache
+	long cache_misses = 0;
+	long read_ahead_blocks = 0;  // blocks read into the cache before they were asked for
+	private long[] next_block = { -1, -1 };  // block after the last request of each kind
+
+	//Count a request of kind READ or WRITE for count blocks from first_block_no to last_block_no
+	void record(int kind, int first_block_no, int last_block_no, int count, int block_size, long elapsed_nanos)
+	{
+		ops[kind]++;
+		blocks[kind] += count;
+		bytes[kind] += (long)count * block_size;
+		if (first_block_no == next_block[kind])
+			sequential[kind]++;
+		next_block[kind] = (long)last_block_no + 1;
+		nanos[kind] += elapsed_nanos;
+
+		long micros = elapsed_nanos / 1000;
+		int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		latency[kind][Math.min(bucket, LATENCY_BUCKETS - 1)]++;
+	}
+
+	void reset()
+	{
+		for (int kind = READ; kind <= WRITE; kind++) {
+			ops[kind] = blocks[kind] = bytes[kind] = sequential[kind] = nanos[kind] = 0;
+			latency[kind] = new long[LATENCY_BUCKETS];
+			next_block[kind] = -1;
+		}
+		zero_blocks = discards = free_runs = zeroed_blocks = cache_hits = cache_misses = read_ahead_blocks = 0;
+	}
+
+	TFSIOStats copy()
+	{
+		TFSIOStats c = new TFSIOStats();
+		for (int kind = READ; kind <= WRITE; kind++) {
+			c.ops[kind] = ops[kind];
+			c.blocks[kind] = blocks[kind];
+			c.bytes[kind] = bytes[kind];
+			c.sequential[kind] = sequential[kind];
+			c.nanos[kind] = nanos[kind];
+			c.latency[kind] = latency[kind].clone();
+			c.next_block[kind] = next_block[kind];
+		}
+		c.zero_blocks = zero_blocks;
+		c.discards = discards;
+		c.free_runs = free_runs;
+		c.zeroed_blocks = zeroed_blocks;
+		c.cache_hits = cache_hits;
+		c.cache_misses = cache_misses;
+		c.read_ahead_blocks = read_ahead_blocks;
+		return c;
+	}
+
+	//One line with what happened since the snapshot before
+	String summary(TFSIOStats before)
+	{
+		return "io: " + (ops[READ] - before.ops[READ]) + " reads (" + (blocks[READ] - before.blocks[READ]) + " blocks, "
+				+ (bytes[READ] - before.bytes[READ]) + " bytes), "
+				+ (ops[WRITE] - before.ops[WRITE]) + " writes (" + (blocks[WRITE] - before.blocks[WRITE]) + " blocks, "
+				+ (bytes[WRITE] - before.bytes[WRITE]) + " bytes), "
+				+ (discards - before.discards) + " discards, "
+				+ (cache_hits - before.cache_hits) + "/" + (cache_hits + cache_misses - before.cache_hits - before.cache_misses)
+				+ " cache hits\n";
+	}
+
+	//Full report with the latency histograms
+	String report()
+	{
+		String output = "";
+		String[] names = { "Reads", "Writes" };
+
+		for (int kind = READ; kind <= WRITE; kind++) {
+			output += names[kind] + ":\n";
+			output += "    Requests = " + ops[kind] + "\n";
+			output += "    Blocks = " + blocks[kind] + "\n";
+			output += "    Bytes = " + bytes[kind] + "\n";
+			output += "    Sequential = " + sequential[kind] + ", random = " + (ops[kind] - sequential[kind])
+					+ (ops[kind] == 0 ? "" : " (" + (sequential[kind] * 100 / ops[kind]) + "% sequential)") + "\n";
+			output += "    Average latency = " + (ops[kind] == 0 ? 0 : nanos[kind] / ops[kind] / 1000) + " us\n";
+			output += "    Latency histogram:\n";
+			for (int i = 0; i < LATENCY_BUCKETS; i++) {
+				if (latency[kind][i] == 0)
+					continue;
+				String bound = i == LATENCY_BUCKETS - 1 ? ">= " + (1L << (i - 1)) : "< " + (1L << i);
+				output += "        " + bound + " us: " + latency[kind][i] + "\n";
+			}
+		}
+		output += "Blocks read as zeros = " + zero_blocks + "\n";
+		output += "Blocks discarded = " + discards + " (released or zeroed in " + free_runs + " requests, "
+				+ zeroed_blocks + " blocks zeroed)\n";
+		output += "Cache hits = " + cache_hits + ", misses = " + cache_misses
+				+ (cache_hits + cache_misses == 0 ? "" : " (" + (cache_hits * 100 / (cache_hits + cache_misses)) + "% hits)") + "\n";
+		output += "Blocks read ahead = " + read_ahead_blocks + "\n";
+
+		return output;
+	}
+}
@@ -0,0 +1,36 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/*
+ * Block device backed by a host file mapped into memory with FileChannel.map
+ * Reads and writes are plain memory copies; sync forces the dirty pages back
+ */
+
+public class TFSMappedBlockDevice extends TFSBufferBlockDevice
+{
+	private RandomAccessFile raf;
+
+	public TFSMappedBlockDevice(File f) throws IOException
+	{
+		raf = new RandomAccessFile(f, "rw");
+		length = raf.length();
+		segments = new ByteBuffer[_tfs_segment_count(length)];
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					(long)i * SEGMENT_SIZE, _tfs_segment_size(length, i));
+	}
+
+	public void sync() throws IOException
+	{
+		for (ByteBuffer segment : segments)
+			((MappedByteBuffer)segment).force();
+	}
+
+	public void close() throws IOException
+	{
+		sync();
+		segments = null;
+		raf.close();
+	}
+}
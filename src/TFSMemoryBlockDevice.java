@@ -0,0 +1,27 @@
+import java.io.*;
+import java.nio.*;
+
+/*
+ * Block device kept entirely in off-heap memory (ByteBuffer.allocateDirect)
+ * Nothing touches the host disk, so the contents are gone once it is closed
+ */
+
+public class TFSMemoryBlockDevice extends TFSBufferBlockDevice
+{
+	public TFSMemoryBlockDevice(long size)
+	{
+		length = size;
+		segments = new ByteBuffer[_tfs_segment_count(length)];
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = ByteBuffer.allocateDirect(_tfs_segment_size(length, i));
+	}
+
+	public void sync()
+	{
+	}
+
+	public void close()
+	{
+		segments = null;
+	}
+}
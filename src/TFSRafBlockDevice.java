@@ -0,0 +1,71 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/*
+ * Block device backed by a host file accessed with seek + read/write
+ */
+
+public class TFSRafBlockDevice implements TFSBlockDevice
+{
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	public TFSRafBlockDevice(File f) throws IOException
+	{
+		raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+	}
+
+	public long length() throws IOException
+	{
+		return raf.length();
+	}
+
+	public void read(long offset, ByteBuffer dst) throws IOException
+	{
+		int n;
+		if (dst.hasArray()) {
+			raf.seek(offset);
+			while (dst.hasRemaining()
+					&& (n = raf.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining())) > 0)
+				dst.position(dst.position() + n);
+		}
+		else
+			while (dst.hasRemaining() && (n = channel.read(dst, offset)) > 0)
+				offset += n;
+
+		//Anything past the end of the file reads as zeros
+		while (dst.hasRemaining())
+			dst.put((byte)0);
+	}
+
+	public void write(long offset, ByteBuffer src) throws IOException
+	{
+		if (src.hasArray()) {
+			raf.seek(offset);
+			raf.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+			src.position(src.limit());
+			return;
+		}
+		while (src.hasRemaining())
+			offset += channel.write(src, offset);
+	}
+
+	public void discard(long offset, long length) throws IOException
+	{
+		//Java cannot punch holes in a file, so the host keeps the space
+		//The file is created with setLength, so blocks never written stay holes
+	}
+
+	public void sync() throws IOException
+	{
+		//Writes so far only reached the OS; get them onto the host disk
+		channel.force(false);
+	}
+
+	public void close() throws IOException
+	{
+		raf.close();
+	}
+}
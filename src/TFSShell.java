@@ -4,6 +4,9 @@ import java.util.*;
 
 public class TFSShell extends Thread
 {
+	boolean io_trace = false;  // print the disk I/O of every command
+	TFSIOStats io_before = null;  // counters when the current command started
+
 	public TFSShell()
 	{
 	}
@@ -28,18 +31,73 @@ public class TFSShell extends Thread
 
 		while(true) {
 
+			if (io_trace && io_before != null)
+				System.out.print(TFSDiskInputOutput.tfs_dio_get_stats().summary(io_before));
 			System.out.print("ush> ");
 
 			line = scanner.nextLine();
 			line = line.trim();
+			if (io_trace)
+				io_before = TFSDiskInputOutput.tfs_dio_get_stats().copy();
 			stokenizer = new StringTokenizer(line);
 			if (stokenizer.hasMoreTokens()) {
 				cmd = stokenizer.nextToken();
 
-				if (cmd.equals("mkfs"))
-					mkfs();
-				else if (cmd.equals("mount"))
-					mount();
+				if (cmd.equals("mkfs")) {
+					HashMap<String, String> opts = options(stokenizer);
+					int mode = -1;
+					int block_size = -1;
+					long disk_size = -1;
+					int allocator = -1;
+					int features = -1;
+					int dir_version = -1;
+					if (opts != null) {
+						mode = dioMode(opts.get("-m"));
+						block_size = number(opts.get("-b"), TFSFileSystem.DEFAULT_BLOCK_SIZE);
+						disk_size = size(opts.get("-s"));
+						features = features(opts.get("-f"));
+						int dir_lookup = dirLookup(opts.get("-i"));
+						features = features < 0 || dir_lookup < 0 ? -1 : features | dir_lookup;
+						allocator = allocator(opts.get("-a"), features);
+						dir_version = number(opts.get("-v"), TFSFileSystem.DIR_FORMAT);
+						if (opts.containsKey("-n") || opts.containsKey("-u") || opts.containsKey("-p")) {
+							int count = number(opts.get("-n"), TFSDiskInputOutput.DEFAULT_STRIPE_COUNT);
+							long unit = size(opts.get("-u"));
+							String[] paths = opts.containsKey("-p") ? opts.get("-p").split(",") : null;
+							if (unit > Integer.MAX_VALUE || TFSDiskInputOutput.tfs_dio_set_stripes(count,
+									unit == 0 ? TFSDiskInputOutput.DEFAULT_STRIPE_UNIT : (int)unit, paths) < 0)
+								mode = -1;
+						}
+					}
+					if (mode < 0 || block_size < 0 || disk_size < 0 || allocator < 0 || features < 0 || dir_version < 0)
+						System.out.println("Usage: mkfs [-m raf|mmap|mem|stripe] [-b block_size] [-s disk_size[K|M|G]]"
+								+ " [-a fat|bitmap] [-f fat|extents] [-i linear|hashed] [-v 1|2|3] [-n stripes] [-u stripe_unit[K|M|G]] [-p file,file,...]");
+					else
+						mkfs(mode, block_size, disk_size, allocator, features, dir_version);
+				}
+				else if (cmd.equals("mount")) {
+					HashMap<String, String> opts = options(stokenizer);
+					int mode = -1;
+					long dirty_limit = -1;
+					int free_mode = -1;
+					if (opts != null) {
+						mode = dioMode(opts.get("-m"));
+						dirty_limit = opts.containsKey("-d") ? size(opts.get("-d")) : TFSFileSystem.DEFAULT_DIRTY_LIMIT;
+						free_mode = freeMode(opts.get("-z"));
+					}
+					if (mode < 0 || dirty_limit < 0 || free_mode < 0)
+						System.out.println("Usage: mount [-m raf|mmap|mem|stripe] [-d dirty_limit[K|M|G]] [-z discard|zero|skip]");
+					else
+						mount(mode, dirty_limit, free_mode);
+				}
+				else if (cmd.equals("convert")) {
+					HashMap<String, String> opts = options(stokenizer);
+					int mode = opts == null ? -1 : dioMode(opts.get("-m"));
+					if (mode < 0)
+						System.out.println("Usage: convert [-m raf|mmap|mem|stripe]");
+					else
+						convert(mode);
+				}
 				else if (cmd.equals("umount"))
 					umount();
 				else if (cmd.equals("sync"))
@@ -48,6 +106,26 @@ public class TFSShell extends Thread
 					prrfs();
 				else if (cmd.equals("prmfs"))
 					prmfs();
+				else if (cmd.equals("defrag")) {
+					HashMap<String, String> opts = options(stokenizer);
+					int max_files = -1;
+					long rate = -1;
+					if (opts != null) {
+						max_files = number(opts.get("-n"), 0);
+						rate = size(opts.get("-r"));
+					}
+					if (max_files < 0 || rate < 0)
+						System.out.println("Usage: defrag [-n files] [-r bytes_per_second[K|M|G]]");
+					else
+						defrag(max_files, rate);
+				}
+				else if (cmd.equals("iostat")) {
+					arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+					if (arg1 == null || arg1.equals("reset") || arg1.equals("trace"))
+						iostat(arg1);
+					else
+						System.out.println("Usage: iostat [reset|trace]");
+				}
 
 				else if (cmd.equals("mkdir")) {
 					if (stokenizer.hasMoreTokens()) {
@@ -74,12 +152,16 @@ public class TFSShell extends Thread
 						System.out.println("Usage: ls directory");
 				}
 				else if (cmd.equals("create")) {
-					if (stokenizer.hasMoreTokens()) {
-						arg1 = stokenizer.nextToken();
-						create(arg1);
+					arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
+					long reserve = 0;
+					if (arg1 != null && arg1.equals("-s")) {
+						reserve = stokenizer.hasMoreTokens() ? size(stokenizer.nextToken()) : -1;
+						arg1 = stokenizer.hasMoreTokens() ? stokenizer.nextToken() : null;
 					}
+					if (arg1 != null && reserve >= 0 && reserve <= Integer.MAX_VALUE)
+						create(arg1, (int)reserve);
 					else
-						System.out.println("Usage: create file");
+						System.out.println("Usage: create [-s size[K|M|G]] file");
 				}
 				else if (cmd.equals("rm")) {
 					if (stokenizer.hasMoreTokens()) {
@@ -179,15 +261,131 @@ public class TFSShell extends Thread
 	}
 
 
+	//Parse the rest of the line as "-x value" option pairs
+	//Returns null if the options are malformed
+	HashMap<String, String> options(StringTokenizer stokenizer)
+	{
+		HashMap<String, String> opts = new HashMap<String, String>();
+		while (stokenizer.hasMoreTokens()) {
+			String opt = stokenizer.nextToken();
+			if (!opt.startsWith("-") || !stokenizer.hasMoreTokens())
+				return null;
+			opts.put(opt, stokenizer.nextToken());
+		}
+		return opts;
+	}
+
+	//Parse a "raf|mmap|mem|stripe" disk backend name, null means keep the current backend
+	//Returns -1 if the name is unknown
+	int dioMode(String mode)
+	{
+		if (mode == null)
+			return TFSDiskInputOutput.tfs_dio_get_mode();
+		if (mode.equals("raf"))
+			return TFSDiskInputOutput.DIO_RAF;
+		if (mode.equals("mmap"))
+			return TFSDiskInputOutput.DIO_MMAP;
+		if (mode.equals("mem"))
+			return TFSDiskInputOutput.DIO_MEMORY;
+		if (mode.equals("stripe"))
+			return TFSDiskInputOutput.DIO_STRIPED;
+		return -1;
+	}
+
+	//Parse a "discard|zero|skip" name of what is done with freed blocks on the disk, null means discard
+	//Returns -1 if the name is unknown
+	int freeMode(String name)
+	{
+		if (name == null || name.equals("discard"))
+			return TFSDiskInputOutput.FREE_DISCARD;
+		if (name.equals("zero"))
+			return TFSDiskInputOutput.FREE_ZERO;
+		if (name.equals("skip"))
+			return TFSDiskInputOutput.FREE_SKIP;
+		return -1;
+	}
+
+	//Parse a "fat|bitmap" free space allocator name, null means fat, or bitmap for an extent file system
+	//Returns -1 if the name is unknown
+	int allocator(String name, int features)
+	{
+		if (name == null)
+			return (features & TFSFileSystem.FEATURE_EXTENTS) != 0 ? TFSFileSystem.ALLOC_BITMAP : TFSFileSystem.ALLOC_FAT;
+		if (name.equals("fat"))
+			return TFSFileSystem.ALLOC_FAT;
+		if (name.equals("bitmap"))
+			return TFSFileSystem.ALLOC_BITMAP;
+		return -1;
+	}
+
+	//Parse a "fat|extents" file layout into format feature bits, null means fat
+	//Returns -1 if the name is unknown
+	int features(String name)
+	{
+		if (name == null || name.equals("fat"))
+			return 0;
+		if (name.equals("extents"))
+			return TFSFileSystem.FEATURE_EXTENTS;
+		return -1;
+	}
+
+	//Parse a "linear|hashed" directory lookup into format feature bits, null means linear
+	//Returns -1 if the name is unknown
+	int dirLookup(String name)
+	{
+		if (name == null || name.equals("linear"))
+			return 0;
+		if (name.equals("hashed"))
+			return TFSFileSystem.FEATURE_DIR_HASH;
+		return -1;
+	}
+
+	//Parse a size in bytes with an optional K, M or G suffix, null means 0
+	//Returns -1 if it is not a size
+	long size(String value)
+	{
+		if (value == null)
+			return 0;
+		long unit = 1;
+		char suffix = Character.toUpperCase(value.charAt(value.length() - 1));
+		if (suffix == 'K')
+			unit = 1L << 10;
+		else if (suffix == 'M')
+			unit = 1L << 20;
+		else if (suffix == 'G')
+			unit = 1L << 30;
+		if (unit != 1)
+			value = value.substring(0, value.length() - 1);
+		try {
+			return Long.parseLong(value) * unit;
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	//Parse a non-negative number option, null means use the default
+	//Returns -1 if it is not a number
+	int number(String value, int default_value)
+	{
+		if (value == null)
+			return default_value;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+
 /*
  * You need to implement these commands
  */
 
-	void mkfs()
+	void mkfs(int mode, int block_size, long disk_size, int allocator, int features, int dir_version)
 	{
 		int r;
 
-		r = TFSFileSystem.tfs_mkfs();
+		r = TFSFileSystem.tfs_mkfs(mode, block_size, disk_size, allocator, features, dir_version);
 
 		if (r == -1)
 			System.out.println("mkfs: cannot make file system");
@@ -196,14 +394,27 @@ public class TFSShell extends Thread
 	}
 
 	//Mount the FS into memory
-	void mount()
+	void mount(int mode, long dirty_limit, int free_mode)
 	{
-		if (TFSFileSystem.tfs_mount() < 0)
+		if (TFSFileSystem.tfs_mount(mode) < 0)
 			System.out.println("Cannot mount FS");
+		else {
+			TFSFileSystem.tfs_set_dirty_limit(dirty_limit);
+			TFSDiskInputOutput.tfs_dio_set_free_mode(free_mode);
+		}
 
 		return;
 	}
 	
+	//Rewrite the directories of the unmounted FS in the current entry format
+	void convert(int mode)
+	{
+		if (TFSFileSystem.tfs_convert(mode) < 0)
+			System.out.println("Cannot convert FS");
+
+		return;
+	}
+
 	//Write the FS in memory onto disk
 	void umount()
 	{
@@ -222,6 +433,27 @@ public class TFSShell extends Thread
 		return;
 	}
 
+	//Print the disk I/O counters, then reset them or switch per command tracing on and off
+	void iostat(String action)
+	{
+		System.out.print(TFSDiskInputOutput.tfs_dio_prstats());
+		if (action == null)
+			return;
+
+		if (action.equals("reset")) {
+			TFSDiskInputOutput.tfs_dio_reset_stats();
+			if (io_trace)
+				io_before = TFSDiskInputOutput.tfs_dio_get_stats().copy();
+		}
+		else {
+			io_trace = !io_trace;
+			io_before = null;
+			System.out.println("I/O trace " + (io_trace ? "on" : "off"));
+		}
+
+		return;
+	}
+
 	void prrfs()
 	{
 		String msg = TFSFileSystem.tfs_prrfs();
@@ -244,6 +476,18 @@ public class TFSShell extends Thread
 		return;
 	}
 	
+	//Move fragmented files into contiguous blocks, at most max_files of them and rate bytes a second (0 for no limit)
+	void defrag(int max_files, long rate)
+	{
+		String msg = TFSFileSystem.tfs_defrag(max_files, rate);
+		if (msg == null)
+			System.out.println("Cannot defragment FS");
+		else
+			System.out.print(msg);
+
+		return;
+	}
+	
 	//Make a directory
 	void mkdir(String directory)
 	{
@@ -303,13 +547,17 @@ public class TFSShell extends Thread
 	}
 
 	//Create an empty file
-	void create(String file)
+	//reserve is the number of bytes to take blocks for right away, 0 for none
+	void create(String file, int reserve)
 	{
 		//Create the file
-		if(TFSFileSystem.tfs_create(file.getBytes(), file.getBytes().length) > -1)
-			System.out.println("File created!");
-		else
+		int fd = TFSFileSystem.tfs_create(file.getBytes(), file.getBytes().length);
+		if(fd < 0)
 			System.out.println("File not created!");
+		else if(reserve > 0 && TFSFileSystem.tfs_reserve(fd, reserve) < 0)
+			System.out.println("File created, but there is no space to reserve " + reserve + " bytes!");
+		else
+			System.out.println("File created!");
 		return;
 	}
 
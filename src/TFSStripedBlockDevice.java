@@ -0,0 +1,149 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Block device striped over several member devices (RAID-0)
+ *
+ * The disk is cut into stripe_unit pieces which go round-robin to the
+ * members: stripe i lives on member i % n at offset (i / n) * stripe_unit.
+ * A request covering several members is split and each member's share
+ * runs on its own thread, so the members transfer in parallel.
+ */
+
+public class TFSStripedBlockDevice implements TFSBlockDevice
+{
+	private static class Piece
+	{
+		long offset;  // offset on the member
+		ByteBuffer buf;
+	}
+
+	private TFSBlockDevice[] members;
+	private int stripe_unit;
+	private ExecutorService pool;
+
+	public TFSStripedBlockDevice(TFSBlockDevice[] members, int stripe_unit)
+	{
+		this.members = members;
+		this.stripe_unit = stripe_unit;
+		pool = Executors.newFixedThreadPool(members.length, r -> {
+			Thread t = new Thread(r, "tfs-stripe");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	//Every member has the same length
+	public long length() throws IOException
+	{
+		return members[0].length() * members.length;
+	}
+
+	public void read(long offset, ByteBuffer dst) throws IOException
+	{
+		_tfs_stripe_io(offset, dst, false);
+	}
+
+	public void write(long offset, ByteBuffer src) throws IOException
+	{
+		_tfs_stripe_io(offset, src, true);
+	}
+
+	public void discard(long offset, long length) throws IOException
+	{
+		while (length > 0) {
+			long stripe = offset / stripe_unit;
+			int in_stripe = (int)(offset % stripe_unit);
+			int n = (int)Math.min(stripe_unit - in_stripe, length);
+			members[(int)(stripe % members.length)].discard((stripe / members.length) * stripe_unit + in_stripe, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	public void sync() throws IOException
+	{
+		for (TFSBlockDevice member : members)
+			member.sync();
+	}
+
+	public void close() throws IOException
+	{
+		pool.shutdown();
+		for (TFSBlockDevice member : members)
+			member.close();
+	}
+
+	//Split buf into stripe pieces, group them by member and run the members in parallel
+	private void _tfs_stripe_io(long offset, ByteBuffer buf, boolean is_write) throws IOException
+	{
+		if (members.length == 1) {
+			if (is_write)
+				members[0].write(offset, buf);
+			else
+				members[0].read(offset, buf);
+			return;
+		}
+
+		ArrayList<ArrayList<Piece>> pieces = new ArrayList<ArrayList<Piece>>();
+		for (int m = 0; m < members.length; m++)
+			pieces.add(new ArrayList<Piece>());
+
+		int base = buf.position();
+		int length = buf.remaining();
+		int used_members = 0;
+		for (int done = 0; done < length; ) {
+			long stripe = (offset + done) / stripe_unit;
+			int in_stripe = (int)((offset + done) % stripe_unit);
+			int n = Math.min(stripe_unit - in_stripe, length - done);
+			int m = (int)(stripe % members.length);
+
+			Piece p = new Piece();
+			p.offset = (stripe / members.length) * stripe_unit + in_stripe;
+			p.buf = buf.slice(base + done, n);
+			if (pieces.get(m).isEmpty())
+				used_members++;
+			pieces.get(m).add(p);
+			done += n;
+		}
+		buf.position(base + length);
+
+		//A request inside one stripe needs no other thread
+		if (used_members == 1) {
+			for (int m = 0; m < members.length; m++)
+				_tfs_member_io(members[m], pieces.get(m), is_write);
+			return;
+		}
+
+		ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int m = 0; m < members.length; m++) {
+			if (pieces.get(m).isEmpty())
+				continue;
+			TFSBlockDevice member = members[m];
+			ArrayList<Piece> share = pieces.get(m);
+			results.add(pool.submit(() -> _tfs_member_io(member, share, is_write)));
+		}
+		try {
+			for (Future<Object> result : results)
+				result.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException ee) {
+			throw new IOException(ee.getCause());
+		}
+	}
+
+	private static Object _tfs_member_io(TFSBlockDevice member, ArrayList<Piece> share, boolean is_write) throws IOException
+	{
+		for (Piece p : share) {
+			if (is_write)
+				member.write(p.offset, p.buf);
+			else
+				member.read(p.offset, p.buf);
+		}
+		return null;
+	}
+}